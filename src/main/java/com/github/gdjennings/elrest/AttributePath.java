@@ -0,0 +1,234 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ListAttribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.MapAttribute;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SetAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dotted property path (e.g. <code>owner.address.postCode</code>) resolved once against the metamodel of
+ * an entity into its chain of attributes and the join each relationship needs. Relationships to one entity
+ * are joined inner when they are mandatory and left otherwise, relationships to many are left joined,
+ * unless the query {@link #joinInner(From, Map) joins them inner} beforehand.
+ * <p>
+ * Paths are cached per {@link EntityManagerFactory}; caches of closed factories are dropped whenever
+ * another factory's paths are resolved.
+ */
+final class AttributePath {
+
+	private static final Map<EntityManagerFactory, Map<ManagedType<?>, Map<String, AttributePath>>> CACHES = new WeakHashMap<>();
+
+	private final String path;
+	private final Step[] steps;
+
+	private AttributePath(String path, Step[] steps) {
+		this.path = path;
+		this.steps = steps;
+	}
+
+	static AttributePath resolve(EntityManagerFactory emf, ManagedType<?> type, String path) {
+		Map<ManagedType<?>, Map<String, AttributePath>> types;
+		synchronized (CACHES) {
+			types = CACHES.get(emf);
+			if (types == null) {
+				CACHES.keySet().removeIf(f -> !f.isOpen());
+				types = new ConcurrentHashMap<>();
+				CACHES.put(emf, types);
+			}
+		}
+		Map<String, AttributePath> paths = types.computeIfAbsent(type, t -> new ConcurrentHashMap<>());
+		AttributePath resolved = paths.get(path);
+		if (resolved == null) {
+			resolved = paths.computeIfAbsent(path, p -> resolve(type, p));
+		}
+		return resolved;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a property does not exist or a path continues past a basic property
+	 */
+	static AttributePath resolve(ManagedType<?> type, String path) {
+		String[] names = path.split("\\.");
+		Step[] steps = new Step[names.length];
+		ManagedType<?> owner = type;
+		for (int i = 0; i < names.length; i++) {
+			if (owner == null) {
+				throw new IllegalArgumentException("Cannot resolve " + path + ": " + names[i - 1] + " has no properties");
+			}
+			Attribute<?, ?> attribute = owner.getAttribute(names[i]);
+			String prefix = i == 0 ? names[0] : steps[i - 1].prefix + "." + names[i];
+			steps[i] = new Step(attribute, prefix);
+
+			Type<?> next = attribute instanceof PluralAttribute ? ((PluralAttribute<?, ?, ?>) attribute).getElementType() : ((SingularAttribute<?, ?>) attribute).getType();
+			owner = next instanceof ManagedType ? (ManagedType<?>) next : null;
+		}
+		return new AttributePath(path, steps);
+	}
+
+	/**
+	 * @param joins joins already made for the query, keyed by path prefix; new joins are added so that every
+	 *              use of a prefix in the query shares one join
+	 * @return the path of the last property, the join itself if the last property is a relationship
+	 */
+	Path<?> apply(From<?, ?> root, Map<String, Join> joins) {
+		return apply(root, joins, steps.length, false);
+	}
+
+	/**
+	 * Joins every relationship of the path that is not joined yet inner, for a path the query only matches
+	 * rows through when the related entities exist
+	 */
+	void joinInner(From<?, ?> root, Map<String, Join> joins) {
+		apply(root, joins, steps.length, true);
+	}
+
+	/**
+	 * @return the collection of a path ending in a relationship to many without joining it, e.g. to test
+	 * whether it is empty
+	 */
+	Expression<?> applyCollection(From<?, ?> root, Map<String, Join> joins) {
+		return apply(root, joins, steps.length - 1, false).get(getAttribute().getName());
+	}
+
+	private Path<?> apply(From<?, ?> root, Map<String, Join> joins, int count, boolean inner) {
+		Path<?> path = root;
+		for (int i = 0; i < count; i++) {
+			Step step = steps[i];
+			if (step.joinType != null && path instanceof From) {
+				Join joined = joins.get(step.prefix);
+				if (joined == null) {
+					joined = step.join((From<?, ?>) path, inner ? JoinType.INNER : step.joinType);
+					joins.put(step.prefix, joined);
+				}
+				path = joined;
+			} else {
+				// e.g. a relationship of an embeddable, joined implicitly
+				path = path.get(step.attribute.getName());
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Fetches the relationships of the path with the entities a query selects, up to its first property
+	 * that is not a relationship
+	 */
+	void fetch(From<?, ?> root) {
+		FetchParent<?, ?> parent = root;
+		for (Step step : steps) {
+			if (step.joinType == null) {
+				break;
+			}
+			parent = parent.fetch(step.attribute.getName(), JoinType.LEFT);
+		}
+	}
+
+	Attribute<?, ?> getAttribute() {
+		return steps[steps.length - 1].attribute;
+	}
+
+	boolean isPlural() {
+		return getAttribute() instanceof PluralAttribute;
+	}
+
+	/**
+	 * @return true if the path can be null, i.e. a property or relationship along it is optional
+	 */
+	boolean isOptional() {
+		for (Step step : steps) {
+			if (step.attribute instanceof PluralAttribute) {
+				return true;
+			}
+			SingularAttribute<?, ?> attribute = (SingularAttribute<?, ?>) step.attribute;
+			if (attribute.isId()) {
+				// ids and their parts are never null, though EclipseLink reports them as optional
+				return false;
+			} else if (attribute.isOptional()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if any step joins a relationship to many, which can repeat rows of the root entity
+	 */
+	boolean isToMany() {
+		return toManyPrefix(true) != null;
+	}
+
+	/**
+	 * @param joinLast false if a trailing relationship to many is used as a collection rather than joined
+	 * @return the prefix of the first relationship to many that is joined, null if there is none
+	 */
+	String toManyPrefix(boolean joinLast) {
+		int joined = joinLast ? steps.length : steps.length - 1;
+		for (int i = 0; i < joined; i++) {
+			if (steps[i].joinType != null && steps[i].attribute instanceof PluralAttribute) {
+				return steps[i].prefix;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	private static final class Step {
+		final Attribute<?, ?> attribute;
+		final String prefix;
+		final JoinType joinType;
+
+		Step(Attribute<?, ?> attribute, String prefix) {
+			this.attribute = attribute;
+			this.prefix = prefix;
+			switch (attribute.getPersistentAttributeType()) {
+				case MANY_TO_ONE:
+				case ONE_TO_ONE:
+					this.joinType = ((SingularAttribute<?, ?>) attribute).isOptional() ? JoinType.LEFT : JoinType.INNER;
+					break;
+				case ONE_TO_MANY:
+				case MANY_TO_MANY:
+					this.joinType = JoinType.LEFT;
+					break;
+				default:
+					this.joinType = null;
+			}
+		}
+
+		Join join(From<?, ?> from, JoinType joinType) {
+			String name = attribute.getName();
+			if (attribute instanceof SetAttribute) {
+				return from.joinSet(name, joinType);
+			} else if (attribute instanceof ListAttribute) {
+				return from.joinList(name, joinType);
+			} else if (attribute instanceof MapAttribute) {
+				return from.joinMap(name, joinType);
+			} else if (attribute instanceof PluralAttribute) {
+				return from.joinCollection(name, joinType);
+			}
+			return from.join(name, joinType);
+		}
+	}
+}
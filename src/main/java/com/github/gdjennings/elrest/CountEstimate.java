@@ -0,0 +1,55 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+/**
+ * The result of {@link ELFilter#approximateCount()}: a count that is either exact or estimated, with the
+ * margin of error of the estimate when it is known.
+ */
+public final class CountEstimate {
+
+	private final long count;
+	private final long errorBound;
+	private final boolean exact;
+
+	private CountEstimate(long count, long errorBound, boolean exact) {
+		this.count = count;
+		this.errorBound = errorBound;
+		this.exact = exact;
+	}
+
+	static CountEstimate exact(long count) {
+		return new CountEstimate(count, 0, true);
+	}
+
+	/**
+	 * @param errorBound see {@link #getErrorBound()}
+	 */
+	static CountEstimate estimated(long count, long errorBound) {
+		return new CountEstimate(count, errorBound, false);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * @return 0 for an exact count, the half width of the 95% confidence interval of an estimate from a
+	 * sample, -1 if unknown, e.g. for an estimate from database statistics
+	 */
+	public long getErrorBound() {
+		return errorBound;
+	}
+
+	@Override
+	public String toString() {
+		return exact ? String.valueOf(count) : errorBound >= 0 ? "~" + count + " +/-" + errorBound : "~" + count;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the database behind an {@link EntityManagerFactory} supports, detected once from the connection url,
+ * driver and provider dialect settings of the factory and cached for as long as it is open.
+ * <p>
+ * Every capability can be overridden with a property named {@value #PREFIX} followed by its name, e.g.
+ * <code>com.github.gdjennings.elrest.dialect.max_in_list_size</code>, set on the persistence unit or as a
+ * system property. <code>database</code> overrides the detected {@link Database} and with it the defaults.
+ */
+final class DialectCapabilities {
+
+	static final String PREFIX = "com.github.gdjennings.elrest.dialect.";
+
+	private static final String[] URL_PROPERTIES = {"javax.persistence.jdbc.url", "hibernate.connection.url"};
+	private static final String[] CLASS_PROPERTIES = {"javax.persistence.jdbc.driver", "hibernate.connection.driver_class",
+			"hibernate.dialect", "eclipselink.target-database"};
+	private static final Pattern JDBC_URL = Pattern.compile("jdbc:([a-z0-9]+):.*");
+
+	private static final Map<EntityManagerFactory, DialectCapabilities> CACHES = new WeakHashMap<>();
+
+	enum Database {
+		H2, HSQLDB, DERBY, POSTGRESQL, MYSQL, MARIADB, ORACLE, SQLSERVER, DB2, OTHER
+	}
+
+	private final Database database;
+	private final int maxInListSize;
+	private final int inListPadding;
+	private final int maxBindParameters;
+	private final String rowEstimateQuery;
+	private final Boolean nullsFirst;
+	private final boolean codePointCollation;
+
+	private DialectCapabilities(Function<String, Object> properties) {
+		Object configured = setting(properties, "database");
+		database = configured != null ? Database.valueOf(configured.toString().toUpperCase(Locale.ROOT)) : detect(properties);
+
+		Object maxInList = setting(properties, "max_in_list_size");
+		maxInListSize = maxInList != null ? Integer.parseInt(maxInList.toString()) : database == Database.ORACLE ? 1000 : 0;
+		Object padding = setting(properties, "in_list_padding");
+		inListPadding = padding != null ? Integer.parseInt(padding.toString()) : 1024;
+		Object maxBind = setting(properties, "max_bind_parameters");
+		maxBindParameters = maxBind != null ? Integer.parseInt(maxBind.toString()) : maxBindParameters(database);
+		Object rowEstimate = setting(properties, "row_estimate_query");
+		rowEstimateQuery = rowEstimate != null ? rowEstimate.toString() : rowEstimateQuery(database);
+		// H2 compares strings as Java does unless a collation is set, other databases usually use linguistic ones
+		codePointCollation = flag(properties, "code_point_collation", database == Database.H2);
+		Object nulls = setting(properties, "nulls_first");
+		if (nulls != null) {
+			nullsFirst = Boolean.valueOf(nulls.toString());
+		} else if (database == Database.OTHER) {
+			nullsFirst = null;
+		} else {
+			nullsFirst = is(Database.H2, Database.HSQLDB, Database.MYSQL, Database.MARIADB, Database.SQLSERVER);
+		}
+	}
+
+	static DialectCapabilities forFactory(EntityManagerFactory emf) {
+		synchronized (CACHES) {
+			DialectCapabilities capabilities = CACHES.get(emf);
+			if (capabilities == null) {
+				CACHES.keySet().removeIf(f -> !f.isOpen());
+				Map<String, Object> properties = emf.getProperties();
+				capabilities = new DialectCapabilities(properties::get);
+				CACHES.put(emf, capabilities);
+			}
+			return capabilities;
+		}
+	}
+
+	/**
+	 * @param properties persistence unit properties
+	 */
+	static DialectCapabilities of(Map<String, ?> properties) {
+		Map<String, ?> unit = properties != null ? properties : Collections.emptyMap();
+		return new DialectCapabilities(unit::get);
+	}
+
+	private static Object setting(Function<String, Object> properties, String name) {
+		Object value = properties.apply(PREFIX + name);
+		return value != null ? value : System.getProperty(PREFIX + name);
+	}
+
+	private static boolean flag(Function<String, Object> properties, String name, boolean detected) {
+		Object value = setting(properties, name);
+		return value != null ? Boolean.parseBoolean(value.toString()) : detected;
+	}
+
+	/**
+	 * Only the subprotocol of the url (<code>jdbc:&lt;subprotocol&gt;:</code>) and the driver, dialect or
+	 * platform class names are matched, as host and database names can contain anything
+	 */
+	private static Database detect(Function<String, Object> properties) {
+		for (String property : URL_PROPERTIES) {
+			Object value = properties.apply(property);
+			Matcher url = JDBC_URL.matcher(value != null ? value.toString().toLowerCase(Locale.ROOT) : "");
+			if (url.matches()) {
+				Database database = byName(url.group(1));
+				if (database != Database.OTHER) {
+					return database;
+				}
+			}
+		}
+		for (String property : CLASS_PROPERTIES) {
+			Object value = properties.apply(property);
+			if (value != null) {
+				String name = value.toString().toLowerCase(Locale.ROOT);
+				Database database = byClassName(name);
+				if (database == Database.OTHER) {
+					// a dialect or platform class, or a short platform name such as PostgreSQL
+					database = byName(name.substring(name.lastIndexOf('.') + 1));
+				}
+				if (database != Database.OTHER) {
+					return database;
+				}
+			}
+		}
+		return Database.OTHER;
+	}
+
+	private static Database byClassName(String name) {
+		if (name.startsWith("org.h2.")) {
+			return Database.H2;
+		} else if (name.startsWith("org.hsqldb.")) {
+			return Database.HSQLDB;
+		} else if (name.startsWith("org.apache.derby.")) {
+			return Database.DERBY;
+		} else if (name.startsWith("org.postgresql.")) {
+			return Database.POSTGRESQL;
+		} else if (name.startsWith("org.mariadb.")) {
+			return Database.MARIADB;
+		} else if (name.startsWith("com.mysql.")) {
+			return Database.MYSQL;
+		} else if (name.startsWith("oracle.jdbc.")) {
+			return Database.ORACLE;
+		} else if (name.startsWith("com.microsoft.sqlserver.") || name.startsWith("net.sourceforge.jtds.")) {
+			return Database.SQLSERVER;
+		} else if (name.startsWith("com.ibm.db2.")) {
+			return Database.DB2;
+		}
+		return Database.OTHER;
+	}
+
+	/**
+	 * @param name a jdbc subprotocol or the simple name of a dialect or platform class
+	 */
+	private static Database byName(String name) {
+		if (name.startsWith("h2")) {
+			return Database.H2;
+		} else if (name.startsWith("hsql")) {
+			return Database.HSQLDB;
+		} else if (name.startsWith("derby")) {
+			return Database.DERBY;
+		} else if (name.startsWith("postgres")) {
+			return Database.POSTGRESQL;
+		} else if (name.startsWith("mariadb")) {
+			return Database.MARIADB;
+		} else if (name.startsWith("mysql")) {
+			return Database.MYSQL;
+		} else if (name.startsWith("oracle")) {
+			return Database.ORACLE;
+		} else if (name.startsWith("sqlserver") || name.startsWith("jtds")) {
+			return Database.SQLSERVER;
+		} else if (name.startsWith("db2")) {
+			return Database.DB2;
+		}
+		return Database.OTHER;
+	}
+
+	/**
+	 * The limits of the drivers and databases on the parameters of one statement
+	 */
+	private static int maxBindParameters(Database database) {
+		switch (database) {
+			case POSTGRESQL:
+				return 32767;
+			case SQLSERVER:
+				return 2100;
+			case ORACLE:
+			case MYSQL:
+			case MARIADB:
+				return 65535;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * The queries take the table name qualified with its schema or not, preferring the current schema for
+	 * the latter
+	 */
+	private static String rowEstimateQuery(Database database) {
+		switch (database) {
+			case H2:
+				return "select row_count_estimate from information_schema.tables where upper(?1) in (upper(table_name), upper(table_schema || '.' || table_name))"
+						+ " order by case when table_schema = schema() then 0 else 1 end";
+			case POSTGRESQL:
+				return "select cast(reltuples as bigint) from pg_class where oid = to_regclass(?)";
+			case MYSQL:
+			case MARIADB:
+				return "select table_rows from information_schema.tables where upper(?1) in (upper(table_name), upper(concat(table_schema, '.', table_name)))"
+						+ " order by case when table_schema = database() then 0 else 1 end";
+			case ORACLE:
+				return "select num_rows from all_tables where upper(?1) in (table_name, owner || '.' || table_name)"
+						+ " order by case when owner = sys_context('USERENV', 'CURRENT_SCHEMA') then 0 else 1 end";
+			case SQLSERVER:
+				return "select sum(row_count) from sys.dm_db_partition_stats where object_id = object_id(?) and index_id < 2";
+			case DB2:
+				return "select card from syscat.tables where upper(?1) in (tabname, rtrim(tabschema) || '.' || tabname)"
+						+ " order by case when tabschema = current schema then 0 else 1 end";
+			default:
+				return null;
+		}
+	}
+
+	private boolean is(Database... databases) {
+		for (Database d : databases) {
+			if (d == database) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Database getDatabase() {
+		return database;
+	}
+
+	/**
+	 * @return the most values an <code>in</code> list may have, 0 for no limit
+	 */
+	int getMaxInListSize() {
+		return maxInListSize;
+	}
+
+	/**
+	 * @return the size up to which <code>in</code> lists are padded to the next power of two, longer lists
+	 * being padded to a multiple of it, 0 to never pad
+	 */
+	int getInListPadding() {
+		return inListPadding;
+	}
+
+	/**
+	 * @return the most parameters a statement may bind, 0 for no limit; the values of longer <code>in</code>
+	 * lists are written into the statement instead
+	 */
+	int getMaxBindParameters() {
+		return maxBindParameters;
+	}
+
+	/**
+	 * @return a native query for the number of rows of the table named by its only parameter, qualified with
+	 * the schema if the mapping has one, according to the database's statistics, null if there is none
+	 */
+	String getRowEstimateQuery() {
+		return rowEstimateQuery;
+	}
+
+	/**
+	 * @return true if strings are compared by code point (a binary collation), so that the strings starting
+	 * with a prefix are exactly those from the prefix up to but excluding its last character incremented
+	 */
+	boolean hasCodePointCollation() {
+		return codePointCollation;
+	}
+
+	/**
+	 * @return true if nulls sort before other values in ascending order, false if after them, null if unknown
+	 */
+	Boolean nullsSortFirst() {
+		return nullsFirst;
+	}
+}
@@ -11,11 +11,12 @@ public abstract class ELFilter<E> {
 	protected String[] selectFields;
 	protected String[] distinctFields;
 	protected String[] groupByFields;
+	protected String[] fetchFields;
 
 	public ELFilter<E> filter(String filter) throws ParseException {
 		this.filter = filter;
 		if (filter != null && filter.trim().length() > 0) {
-			this.expression = new FilterELParser(filter).parse();
+			this.expression = FilterExpressionCache.getDefault().parse(filter);
 		}
 		return this;
 	}
@@ -40,8 +41,56 @@ public abstract class ELFilter<E> {
 		return this;
 	}
 
+	/**
+	 * @param fetchPaths dotted paths of relationships to load with the results, e.g. <code>address</code> or
+	 *                   <code>roles.permissions</code>, so they are not loaded one entity at a time later
+	 */
+	public ELFilter<E> fetch(String... fetchPaths) {
+		this.fetchFields = fetchPaths;
+		return this;
+	}
+
+	/**
+	 * @return an immutable snapshot of the current filter, select, orderBy, distinct, groupBy and fetch settings
+	 */
+	public FilterPlan toPlan() {
+		return FilterPlan.of(this);
+	}
+
+	void configure(FilterPlan plan) {
+		this.filter = plan.getFilter();
+		this.expression = plan.getExpression();
+		this.orderByFields = plan.orderByFields();
+		this.selectFields = plan.selectFields();
+		this.distinctFields = plan.distinctFields();
+		this.groupByFields = plan.groupByFields();
+		this.fetchFields = plan.fetchFields();
+	}
+
 	public abstract Long count();
 
+	/**
+	 * @return true if anything matches, which implementations can find out without counting every match
+	 */
+	public boolean exists() {
+		return countUpTo(1) > 0;
+	}
+
+	/**
+	 * @return the number of matches, but no more than <code>max</code>, e.g. to show "1000+" without counting
+	 * every match
+	 */
+	public long countUpTo(long max) {
+		return Math.min(count(), Math.max(max, 0));
+	}
+
+	/**
+	 * @return the number of matches, estimated where that is cheaper than counting them
+	 */
+	public CountEstimate approximateCount() {
+		return CountEstimate.exact(count());
+	}
+
 	public abstract <T> T getSingleResult(Class<T> resultClass);
 
 	public abstract <T> List<T> getResultList(Class<T> resultClass, int limit, int skip);
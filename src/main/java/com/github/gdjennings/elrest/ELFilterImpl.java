@@ -1,4 +1,3 @@
-/*
 /*
  *  
  * Copyright (c) .Grant Jennings. All rights reserved.  
@@ -6,161 +5,333 @@
 */
 package com.github.gdjennings.elrest;
 
-import javax.el.ELProcessor;
-import javax.xml.bind.DatatypeConverter;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Collection;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.logging.Filter;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author grantjennings
  */
 public class ELFilterImpl<E> extends ELFilter<E> {
 
-	private ELProcessor elp = new ELProcessor();
-	private Object data;
+	/**
+	 * How filter expressions are turned into predicates
+	 */
+	public enum ExecutionMode {
+		/** a tree of predicate nodes reading properties through reflected getters */
+		INTERPRETED,
+		/** predicates with getter calls generated per element class and filter, cached across filter instances */
+		GENERATED
+	}
+
+	/**
+	 * Sources with fewer elements than this are filtered sequentially by {@link #parallel()}
+	 */
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 10_000;
+
+	private final Supplier<Spliterator<Object>> source;
+	private final Runnable closeSource;
+	private Map<Class<?>, Predicate<Object>> compiledFilters = new ConcurrentHashMap<>();
+	private FilterPlan plan;
+	private ExecutionMode executionMode = ExecutionMode.INTERPRETED;
+	private ForkJoinPool pool;
+	private long parallelThreshold;
 
 
+	/**
+	 * @param data an {@link Iterable}, {@link Iterator}, {@link Stream} or {@link Spliterator} of elements,
+	 *             or a single bean
+	 */
 	public ELFilterImpl(Object data) {
-		this(data, new HashMap<>());
+		if (data instanceof Iterable) {
+			this.source = ((Iterable<Object>) data)::spliterator;
+		} else if (data instanceof Iterator) {
+			this.source = singleUse(() -> Spliterators.spliteratorUnknownSize((Iterator<Object>) data, Spliterator.ORDERED));
+		} else if (data instanceof Stream) {
+			this.source = singleUse(((Stream<Object>) data)::spliterator);
+		} else if (data instanceof Spliterator) {
+			this.source = singleUse(() -> (Spliterator<Object>) data);
+		} else if (data != null) {
+			this.source = () -> Spliterators.spliterator(new Object[]{data}, Spliterator.ORDERED | Spliterator.IMMUTABLE);
+		} else {
+			this.source = Spliterators::emptySpliterator;
+		}
+		this.closeSource = data instanceof Stream ? ((Stream<?>) data)::close : null;
+	}
+
+	public ELFilterImpl(Iterable<? extends E> data) {
+		this((Object) data);
+	}
+
+	/**
+	 * The iterator is consumed by the first terminal operation
+	 */
+	public ELFilterImpl(Iterator<? extends E> data) {
+		this((Object) data);
+	}
+
+	/**
+	 * The stream is consumed and closed by the first terminal operation
+	 */
+	public ELFilterImpl(Stream<? extends E> data) {
+		this((Object) data);
 	}
 
+	/**
+	 * The spliterator is consumed by the first terminal operation
+	 */
+	public ELFilterImpl(Spliterator<? extends E> data) {
+		this((Object) data);
+	}
+
+	/**
+	 * @deprecated filters are compiled to predicates and no longer evaluated with javax.el, the context is ignored
+	 */
+	@Deprecated
 	public ELFilterImpl(Object data, Map<String, Object> context){
-		this.data = data;
-		context.forEach(elp::setValue);
-	}
-
-
-	private FilterExpression.Clause updateExpression(FilterExpression.Clause clause, Object entity) {
-		// work out if the criteria is a simple type (eg string) or related entity
-		if (clause instanceof FilterExpression.CompoundClause) {
-			FilterExpression.CompoundClause compound = new FilterExpression.CompoundClause();
-			compound.left = updateExpression(((FilterExpression.CompoundClause) clause).left, entity);
-			compound.right = updateExpression(((FilterExpression.CompoundClause) clause).right, entity);
-			compound.operator = ((FilterExpression.CompoundClause) clause).operator;
-			return compound;
-		} else if (clause instanceof FilterExpression.SimpleClause) {
-			FilterExpression.SimpleClause simpleClause = (FilterExpression.SimpleClause) clause;
-
-			FilterExpression.SimpleClause rewrittenClause = new FilterExpression.SimpleClause();
-			String rewrittenValue = simpleClause.value;
-			rewrittenClause.operator = simpleClause.operator;
-
-			rewrittenClause.identifier = "entity." + simpleClause.identifier;
-			if (entity != null) {
-				ELProcessor getIdELP = new ELProcessor();
-				getIdELP.setValue("entity", entity);
-				Object prop = getIdELP.eval(rewrittenClause.identifier);
-				if (prop != null && !"null".equals(simpleClause.value)) {
-					boolean convertToMillis = false;
-					if (Date.class.isAssignableFrom(prop.getClass())) {
-						rewrittenClause.identifier += ".getTime()";
-						convertToMillis = true;
-					} else if (Calendar.class.isAssignableFrom(prop.getClass())) {
-						rewrittenClause.identifier += ".getTimeInMillis()";
-						convertToMillis = true;
-					}
-					if (convertToMillis) {
-						try {
-							Long.parseLong(String.valueOf(simpleClause.value));
-						} catch (NumberFormatException e) {
-							rewrittenValue = String.valueOf(DatatypeConverter.parseDateTime(simpleClause.value).getTimeInMillis());
-						}
-					}
-				}
-			}
+		this(data);
+	}
 
-			rewrittenClause.value = simpleClause.value.equals("null") ? null : '"' + rewrittenValue + '"';
-
-			switch (simpleClause.operator) {
-				case GTE:
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.GE;
-					break;
-				case LTE:
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.LE;
-					break;
-				case NOT_EQ:
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.NE;
-					break;
-				case IN:
-					rewrittenClause.identifier = "(" + rewrittenClause.identifier + " ne null) and " + rewrittenClause.value + ".contains(" + rewrittenClause.identifier + ")";
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.EQ;
-					rewrittenClause.value = "true";
-
-					break;
-				case NOT_IN: case NOT_IN2:
-					rewrittenClause.identifier = "(" + rewrittenClause.identifier + " ne null) and " + rewrittenClause.value + ".contains(" + rewrittenClause.identifier + ")";
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.NE;
-					rewrittenClause.value = "true";
-
-					break;
-				case LIKE:
-					rewrittenClause.identifier += ".matches(" + rewrittenClause.value.replaceAll("%", ".*") + ")";
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.EQ;
-					rewrittenClause.value = "true";
-					break;
-				case NOT_LIKE: case NOT_LIKE2:
-					rewrittenClause.identifier += ".matches(" + rewrittenClause.value.replaceAll("%", ".*") + ")";
-					rewrittenClause.operator = FilterExpression.ComparisonOperator.NE;
-					rewrittenClause.value = "true";
-					break;
-			}
-			return rewrittenClause;
+	@Override
+	public ELFilter<E> filter(String filter) throws ParseException {
+		plan = null;
+		compiledFilters = new ConcurrentHashMap<>();
+		return super.filter(filter);
+	}
+
+	@Override
+	void configure(FilterPlan plan) {
+		super.configure(plan);
+		this.plan = plan;
+		compiledFilters = plan.predicates(executionMode);
+	}
+
+	public ELFilterImpl<E> executionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+		compiledFilters = plan != null ? plan.predicates(executionMode) : new ConcurrentHashMap<>();
+		return this;
+	}
+
+	/**
+	 * Filters in parallel in the common pool once the source has at least {@link #DEFAULT_PARALLEL_THRESHOLD} elements
+	 */
+	public ELFilterImpl<E> parallel() {
+		return parallel(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Filters in parallel in the given pool, splitting the source by its {@link Spliterator}. Sources whose
+	 * estimated size is below the threshold are filtered sequentially. Encounter order is kept where the
+	 * result depends on it (ordering, skip, limit and result lists), counts are unordered.
+	 */
+	public ELFilterImpl<E> parallel(ForkJoinPool pool, long threshold) {
+		this.pool = pool;
+		this.parallelThreshold = threshold;
+		return this;
+	}
+
+	public ELFilterImpl<E> sequential() {
+		this.pool = null;
+		return this;
+	}
+
+	private Predicate<Object> compile(Class<?> type) {
+		if (executionMode == ExecutionMode.GENERATED) {
+			return PredicateGenerator.generate(expression, type);
 		} else {
-			return null;
+			return PredicateCompiler.compile(expression, type);
 		}
 	}
 
-	private Object applyFilter(Object entity) {
-		if (Collection.class.isAssignableFrom(entity.getClass())) {
-			return ((Collection) entity).stream().filter(e -> this.applyFilter(e) != null)
-			.collect(Collectors.toList());
-		} else {
-			if (expression != null) {
-				FilterExpression.Clause updatedExpression = this.updateExpression(expression.getClause(), entity);
-				elp.setValue("entity", entity);
-				return (Boolean) elp.eval(updatedExpression.toString()) ? entity : null;
-			} else {
-				return Boolean.TRUE;
+	private boolean matches(Object entity) {
+		if (expression == null) {
+			return true;
+		}
+		if (entity == null) {
+			return false;
+		}
+		Class<?> type = entity.getClass();
+		Predicate<Object> compiled = compiledFilters.get(type);
+		if (compiled == null) {
+			compiled = compiledFilters.computeIfAbsent(type, this::compile);
+		}
+		return compiled.test(entity);
+	}
+
+	private static Supplier<Spliterator<Object>> singleUse(Supplier<Spliterator<Object>> source) {
+		AtomicBoolean consumed = new AtomicBoolean();
+		return () -> {
+			if (consumed.getAndSet(true)) {
+				throw new IllegalStateException("The source of this filter has already been consumed");
 			}
+			return source.get();
+		};
+	}
+
+	private Stream<Object> applyFilter() {
+		Spliterator<Object> spliterator = source.get();
+		boolean parallel = pool != null && spliterator.estimateSize() >= parallelThreshold;
+		Stream<Object> elements = StreamSupport.stream(spliterator, parallel);
+		if (closeSource != null) {
+			elements = elements.onClose(closeSource);
 		}
+		return expression != null ? elements.filter(this::matches) : elements;
 	}
 
 	@Override
 	public Long count() {
-		Object filteredData = applyFilter(data);
+		try (Stream<Object> results = applyFilter()) {
+			return execute(results.unordered(), Stream::count);
+		}
+	}
 
-		if (Collection.class.isAssignableFrom(filteredData.getClass())) {
-			return Long.valueOf(((Collection)filteredData).size());
-		} else {
-			return filteredData != null ? 1L : 0L;
+	/**
+	 * Stops the scan at the first match
+	 */
+	@Override
+	public boolean exists() {
+		try (Stream<Object> results = applyFilter()) {
+			return execute(results.unordered(), r -> r.findAny().isPresent());
+		}
+	}
+
+	/**
+	 * Stops the scan once <code>max</code> matches are found
+	 */
+	@Override
+	public long countUpTo(long max) {
+		if (max <= 0) {
+			return 0;
+		}
+		try (Stream<Object> results = applyFilter()) {
+			return execute(results.unordered(), r -> r.limit(max).count());
 		}
 	}
 
 	@Override
 	public <T> T getSingleResult(Class<T> resultClass) {
-		Object filteredData = applyFilter(data);
-		if (filteredData != null && Collection.class.isAssignableFrom(filteredData.getClass())) {
-			return ((Collection)filteredData).isEmpty() ? null : (T) ((Collection)filteredData).iterator().next();
-		} else {
-			return (T) filteredData;
+		try (Stream<Object> results = applyFilter()) {
+			return (T) execute(results, r -> r.findFirst().orElse(null));
 		}
 	}
 
+	/**
+	 * Lazily filters the source, nothing is read until the stream is consumed. Ordering by orderBy fields
+	 * has to read all matches before the first is returned. Without a filter or ordering the stream reports
+	 * the size of sized sources. Closing the stream closes a {@link Stream} source. In parallel mode the
+	 * returned stream is parallel and its terminal operation runs in the pool of the caller.
+	 */
+	public Stream<E> getResultStream() {
+		Stream<E> results = (Stream<E>) applyFilter();
+		if (orderByFields != null && orderByFields.length > 0) {
+			results = results.sorted(PropertyAccessors.comparator(Object.class, orderByFields));
+		}
+		return results;
+	}
+
+	/**
+	 * Matches are skipped and limited as they are found so the scan stops once <code>skip + limit</code>
+	 * matches are found. With orderBy only the first <code>skip + limit</code> matches in order are retained
+	 * rather than sorting every match. A limit of 0 or less returns all matches.
+	 */
 	@Override
 	public <T> List<T> getResultList(Class<T> resultClass, int limit, int skip) {
-		Object filteredData = applyFilter(data);
-		if (Collection.class.isAssignableFrom(filteredData.getClass())) {
-			return new ArrayList<T>((Collection)filteredData);
-		} else {
-			return Arrays.asList((T) filteredData);
+		try (Stream<T> results = (Stream<T>) applyFilter()) {
+			return execute(results, r -> getResultList(r, resultClass, limit, skip));
+		}
+	}
+
+	private <T> List<T> getResultList(Stream<T> results, Class<T> resultClass, int limit, int skip) {
+		long retained = limit > 0 ? (long) Math.max(skip, 0) + limit : Long.MAX_VALUE;
+
+		if (orderByFields != null && orderByFields.length > 0) {
+			Comparator<? super T> order = (Comparator<? super T>) PropertyAccessors.comparator(resultClass, orderByFields);
+			if (retained < Integer.MAX_VALUE) {
+				results = firstInOrder(results, order, (int) retained).stream();
+			} else {
+				results = results.sorted(order);
+			}
+		}
+
+		if (skip > 0) {
+			results = results.skip(skip);
+		}
+		if (limit > 0) {
+			results = results.limit(limit);
+		}
+		return results.collect(Collectors.toList());
+	}
+
+	private <S extends Stream<?>, R> R execute(S results, Function<S, R> terminal) {
+		if (results.isParallel()) {
+			return pool.submit(() -> terminal.apply(results)).join();
+		}
+		return terminal.apply(results);
+	}
+
+	/**
+	 * @return the first n elements in order, sorted stably, keeping no more than n elements in memory
+	 */
+	private static <T> List<T> firstInOrder(Stream<T> elements, Comparator<? super T> order, int n) {
+		return elements.collect(Collector.of(() -> new FirstInOrder<T>(order, n), FirstInOrder::add, FirstInOrder::addAll, FirstInOrder::sorted));
+	}
+
+	private static final class FirstInOrder<T> {
+		final Comparator<Ranked<T>> ranked;
+		final PriorityQueue<Ranked<T>> largestFirst;
+		final int n;
+		long index;
+
+		FirstInOrder(Comparator<? super T> order, int n) {
+			this.ranked = Comparator.<Ranked<T>, T>comparing(r -> r.element, order).thenComparingLong(r -> r.index);
+			this.largestFirst = new PriorityQueue<>(Math.min(n, 1024), ranked.reversed());
+			this.n = n;
+		}
+
+		void add(T e) {
+			Ranked<T> r = new Ranked<>(e, index++);
+			if (largestFirst.size() < n) {
+				largestFirst.add(r);
+			} else if (ranked.compare(r, largestFirst.peek()) < 0) {
+				largestFirst.poll();
+				largestFirst.add(r);
+			}
+		}
+
+		/**
+		 * Adds the elements of a later part of the source, which rank after equal elements of this part
+		 */
+		FirstInOrder<T> addAll(FirstInOrder<T> later) {
+			later.sorted().forEach(this::add);
+			return this;
+		}
+
+		List<T> sorted() {
+			return largestFirst.stream().sorted(ranked).map(r -> r.element).collect(Collectors.toList());
+		}
+	}
+
+	private static final class Ranked<T> {
+		final T element;
+		final long index;
+
+		Ranked(T element, long index) {
+			this.element = element;
+			this.index = index;
 		}
 	}
 }
@@ -5,10 +5,14 @@
 */
 package com.github.gdjennings.elrest;
 
+import java.util.regex.Pattern;
+
 /**
  * @author grantjennings
  */
 public class FilterExpression {
+	static final Pattern CASE_PATTERN = Pattern.compile("(lower|upper)\\((.*)\\)");
+
 	private Clause clause;
 
 	public Clause getClause() {
@@ -46,7 +50,8 @@ public class FilterExpression {
 		NOT_IN2("!in"),
 		LIKE("like"),
 		NOT_LIKE("not like"),
-		NOT_LIKE2("!like");
+		NOT_LIKE2("!like"),
+		BETWEEN("between");
 
 		private String op;
 
@@ -59,6 +64,26 @@ public class FilterExpression {
 			return op;
 		}
 
+		/**
+		 * @return the operator with aliases (gte, lte, !eq, !in, !like) folded into a single spelling
+		 */
+		public ComparisonOperator canonical() {
+			switch (this) {
+				case NOT_EQ:
+					return NE;
+				case LTE:
+					return LE;
+				case GTE:
+					return GE;
+				case NOT_IN2:
+					return NOT_IN;
+				case NOT_LIKE2:
+					return NOT_LIKE;
+				default:
+					return this;
+			}
+		}
+
 		public static ComparisonOperator fromString(String text) {
 			if (text != null) {
 				for (ComparisonOperator b : ComparisonOperator.values()) {
@@ -79,9 +104,38 @@ public class FilterExpression {
 		public String identifier;
 		public ComparisonOperator operator;
 		public String value;
+		/**
+		 * the upper bound of {@link ComparisonOperator#BETWEEN}, the lower bound being the value
+		 */
+		public String upperValue;
+
+		/**
+		 * @return <code>identifier ge value</code> of a between clause
+		 */
+		public SimpleClause lowerBound() {
+			return bound(ComparisonOperator.GE, value);
+		}
+
+		/**
+		 * @return <code>identifier le upperValue</code> of a between clause
+		 */
+		public SimpleClause upperBound() {
+			return bound(ComparisonOperator.LE, upperValue);
+		}
+
+		private SimpleClause bound(ComparisonOperator operator, String value) {
+			SimpleClause bound = new SimpleClause();
+			bound.identifier = identifier;
+			bound.operator = operator;
+			bound.value = value;
+			return bound;
+		}
 
 		@Override
 		public String toString() {
+			if (operator == ComparisonOperator.BETWEEN) {
+				return identifier + " " + operator + " " + value + " and " + upperValue;
+			}
 			return identifier + " " + operator + " " + value;
 		}
 	}
@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache of parsed filter expressions keyed by the raw filter string.
+ * <p>
+ * Filters that fail to parse are cached as well so that repeatedly submitted bad filters do not
+ * re-run the parser; each lookup of a failed filter throws a new {@link ParseException} carrying the
+ * original message.
+ * <p>
+ * Cached {@link FilterExpression}s are shared between callers and must be treated as read-only.
+ * The size of the shared instance defaults to {@value #DEFAULT_SIZE} and can be changed with the
+ * system property {@value #SIZE_PROPERTY}. A size of 0 disables caching.
+ */
+public class FilterExpressionCache {
+
+	public static final String SIZE_PROPERTY = "com.github.gdjennings.elrest.parse_cache_size";
+	public static final int DEFAULT_SIZE = 1024;
+
+	private static final FilterExpressionCache DEFAULT = new FilterExpressionCache(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+
+	private final int maxSize;
+	private final Map<String, Object> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public FilterExpressionCache(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				if (size() > FilterExpressionCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache used by {@link ELFilter#filter(String)}
+	 */
+	public static FilterExpressionCache getDefault() {
+		return DEFAULT;
+	}
+
+	public FilterExpression parse(String filter) throws ParseException {
+		Object cached;
+		synchronized (entries) {
+			cached = entries.get(filter);
+		}
+
+		if (cached == null) {
+			misses.incrementAndGet();
+			try {
+				cached = new FilterELParser(filter).parse();
+			} catch (ParseException e) {
+				cached = new Failure(e.getMessage());
+			}
+			if (maxSize > 0) {
+				synchronized (entries) {
+					entries.put(filter, cached);
+				}
+			}
+		} else {
+			hits.incrementAndGet();
+		}
+
+		if (cached instanceof Failure) {
+			throw new ParseException(((Failure) cached).message);
+		}
+		return (FilterExpression) cached;
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private static final class Failure {
+		private final String message;
+
+		private Failure(String message) {
+			this.message = message;
+		}
+	}
+}
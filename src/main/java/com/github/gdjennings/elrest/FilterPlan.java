@@ -0,0 +1,160 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import javax.persistence.EntityManager;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * An immutable, parsed filter with its select, orderBy, distinct, groupBy and fetch settings. A plan is built once,
+ * e.g. kept in a static field, and bound per request to an {@link EntityManager} or a data set; binding only
+ * creates a lightweight {@link ELFilter} so plans can be used from any number of threads at once.
+ * <p>
+ * In-memory predicates compiled for a plan are kept with the plan and shared by every binding.
+ */
+public final class FilterPlan {
+
+	private static final String[] NONE = new String[0];
+
+	private final String filter;
+	private final FilterExpression expression;
+	private final String[] orderByFields;
+	private final String[] selectFields;
+	private final String[] distinctFields;
+	private final String[] groupByFields;
+	private final String[] fetchFields;
+	private final Map<ELFilterImpl.ExecutionMode, Map<Class<?>, Predicate<Object>>> predicates;
+
+	private FilterPlan(String filter, FilterExpression expression, String[] orderByFields, String[] selectFields,
+	                   String[] distinctFields, String[] groupByFields, String[] fetchFields,
+	                   Map<ELFilterImpl.ExecutionMode, Map<Class<?>, Predicate<Object>>> predicates) {
+		this.filter = filter;
+		this.expression = expression;
+		this.orderByFields = orderByFields;
+		this.selectFields = selectFields;
+		this.distinctFields = distinctFields;
+		this.groupByFields = groupByFields;
+		this.fetchFields = fetchFields;
+		this.predicates = predicates;
+	}
+
+	/**
+	 * @param filter the filter expression, null or blank for no filter
+	 */
+	public static FilterPlan compile(String filter) throws ParseException {
+		FilterExpression expression = null;
+		if (filter != null && filter.trim().length() > 0) {
+			expression = FilterExpressionCache.getDefault().parse(filter);
+		}
+		return new FilterPlan(filter, expression, NONE, NONE, NONE, NONE, NONE, new ConcurrentHashMap<>());
+	}
+
+	static FilterPlan of(ELFilter<?> filter) {
+		return new FilterPlan(filter.filter, filter.expression, copy(filter.orderByFields), copy(filter.selectFields),
+				copy(filter.distinctFields), copy(filter.groupByFields), copy(filter.fetchFields), new ConcurrentHashMap<>());
+	}
+
+	public FilterPlan orderBy(String... orderByFields) {
+		return new FilterPlan(filter, expression, copy(orderByFields), selectFields, distinctFields, groupByFields, fetchFields, predicates);
+	}
+
+	public FilterPlan select(String... selectFields) {
+		return new FilterPlan(filter, expression, orderByFields, copy(selectFields), distinctFields, groupByFields, fetchFields, predicates);
+	}
+
+	public FilterPlan distinct(String... distinctFields) {
+		return new FilterPlan(filter, expression, orderByFields, selectFields, copy(distinctFields), groupByFields, fetchFields, predicates);
+	}
+
+	public FilterPlan groupBy(String... groupByFields) {
+		return new FilterPlan(filter, expression, orderByFields, selectFields, distinctFields, copy(groupByFields), fetchFields, predicates);
+	}
+
+	public FilterPlan fetch(String... fetchPaths) {
+		return new FilterPlan(filter, expression, orderByFields, selectFields, distinctFields, groupByFields, copy(fetchPaths), predicates);
+	}
+
+	public <E> JpaELFilterImpl<E> bind(EntityManager em, Class<E> entityClass) {
+		JpaELFilterImpl<E> bound = new JpaELFilterImpl<>(em, entityClass);
+		bound.configure(this);
+		return bound;
+	}
+
+	/**
+	 * @param data any source accepted by {@link ELFilterImpl#ELFilterImpl(Object)}
+	 */
+	public <E> ELFilterImpl<E> bind(Object data) {
+		ELFilterImpl<E> bound = new ELFilterImpl<>(data);
+		bound.configure(this);
+		return bound;
+	}
+
+	public String getFilter() {
+		return filter;
+	}
+
+	FilterExpression getExpression() {
+		return expression;
+	}
+
+	public String[] getOrderByFields() {
+		return orderByFields.clone();
+	}
+
+	public String[] getSelectFields() {
+		return selectFields.clone();
+	}
+
+	public String[] getDistinctFields() {
+		return distinctFields.clone();
+	}
+
+	public String[] getGroupByFields() {
+		return groupByFields.clone();
+	}
+
+	public String[] getFetchFields() {
+		return fetchFields.clone();
+	}
+
+	/**
+	 * The arrays are never modified once the plan is built so they are handed to bound filters as is
+	 */
+	String[] orderByFields() {
+		return orderByFields;
+	}
+
+	String[] selectFields() {
+		return selectFields;
+	}
+
+	String[] distinctFields() {
+		return distinctFields;
+	}
+
+	String[] groupByFields() {
+		return groupByFields;
+	}
+
+	String[] fetchFields() {
+		return fetchFields;
+	}
+
+	Map<Class<?>, Predicate<Object>> predicates(ELFilterImpl.ExecutionMode executionMode) {
+		return predicates.computeIfAbsent(executionMode, m -> new ConcurrentHashMap<>());
+	}
+
+	@Override
+	public String toString() {
+		return expression != null ? expression.toString() : "true";
+	}
+
+	private static String[] copy(String[] fields) {
+		return fields == null || fields.length == 0 ? NONE : fields.clone();
+	}
+}
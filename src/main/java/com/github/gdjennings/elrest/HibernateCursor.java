@@ -0,0 +1,27 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import org.hibernate.query.Query;
+
+import javax.persistence.TypedQuery;
+import java.util.stream.Stream;
+
+/**
+ * Forward only Hibernate cursor, kept apart from {@link JpaELFilterImpl} so that Hibernate classes are only
+ * loaded when Hibernate is the provider.
+ */
+final class HibernateCursor {
+
+	private HibernateCursor() {
+	}
+
+	static <T> Stream<T> stream(TypedQuery<T> query, int fetchSize) {
+		Query<T> hibernateQuery = query.unwrap(Query.class);
+		hibernateQuery.setFetchSize(fetchSize);
+		return hibernateQuery.stream();
+	}
+}
@@ -8,46 +8,71 @@ package com.github.gdjennings.elrest;
 import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Subgraph;
+import javax.persistence.Table;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.AbstractQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Join;
-import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
 import javax.persistence.metamodel.Attribute;
-import javax.persistence.metamodel.CollectionAttribute;
 import javax.persistence.metamodel.EntityType;
-import javax.persistence.metamodel.ListAttribute;
+import javax.persistence.metamodel.ManagedType;
 import javax.persistence.metamodel.PluralAttribute;
-import javax.persistence.metamodel.SetAttribute;
 import javax.persistence.metamodel.SingularAttribute;
 import javax.persistence.metamodel.Type;
 import javax.xml.bind.DatatypeConverter;
+import java.lang.invoke.MethodType;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author grantjennings
  */
 public class JpaELFilterImpl<E> extends ELFilter<E> {
+	static final int DEFAULT_SAMPLE_SIZE = 1000;
+	static final int SAMPLE_BUCKETS = 32;
+
 	private static final Pattern AGGREGATE_FUNCTION = Pattern.compile("(?<fn>count|sum|min|max|avg)\\((?<field>.*)\\)");
 
 
@@ -55,7 +80,9 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 	private CriteriaBuilder build;
 	private Class<E> entityClass;
 
-	static final Pattern CASE_PATTERN = Pattern.compile("(lower|upper)\\((.*)\\)");
+	static final Pattern CASE_PATTERN = FilterExpression.CASE_PATTERN;
+
+	private final Map<String, String> normalizedCase = new TreeMap<>();
 
 	public JpaELFilterImpl(EntityManager em, Class<E> entityClass) {
 		this.em = em;
@@ -63,12 +90,33 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 		this.entityClass = entityClass;
 	}
 
-	private void buildPredicate(AbstractQuery query, Root resultRoot, Map<Attribute, Join> joins) {
+	/**
+	 * Compares an attribute that holds the case converted value of another, e.g. an indexed
+	 * <code>lowerLastName</code> column kept equal to <code>lower(lastName)</code>, wherever the filter uses
+	 * the function, rather than converting the column in the query where no plain index can be used for it.
+	 *
+	 * @param function        <code>lower(path)</code> or <code>upper(path)</code> as used in filters
+	 * @param shadowAttribute the path of the attribute holding the converted value
+	 */
+	public JpaELFilterImpl<E> normalizedCase(String function, String shadowAttribute) {
+		Matcher caseMatcher = CASE_PATTERN.matcher(function.trim());
+		if (!caseMatcher.matches()) {
+			throw new IllegalArgumentException("Not a lower or upper function: " + function);
+		}
+		normalizedCase.put(caseMatcher.group(1) + "(" + caseMatcher.group(2).trim() + ")", shadowAttribute);
+		return this;
+	}
+
+	private void buildPredicate(AbstractQuery query, Root resultRoot, Map<String, Join> joins, Parameters parameters) {
 
 		Predicate predicate = null;
 		if (expression != null && filter.trim().length() > 0) {
 			FilterExpression.Clause rootClause = this.expression.getClause();
-			predicate = buildPredicate(rootClause, resultRoot, joins);
+			parameters.number(rootClause);
+			List<FilterExpression.Clause> conjuncts = new ArrayList<>();
+			addConjuncts(rootClause, conjuncts);
+			joinInner(conjuncts, false, resultRoot, joins);
+			predicate = buildPredicate(rootClause, query, resultRoot, joins, parameters);
 		}
 
 		if (predicate != null) {
@@ -76,157 +124,258 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 		}
 	}
 
-	private Predicate buildPredicate(FilterExpression.Clause clause, Root resultRoot, Map<Attribute, Join> joins) {
-		if (clause instanceof FilterExpression.CompoundClause) {
-			return buildCompoundPredicate((FilterExpression.CompoundClause) clause, resultRoot, joins);
+	/**
+	 * @param subqueries the query to add <code>exists</code> subqueries for paths through relationships to many
+	 *                   to, null to join them
+	 */
+	private Predicate buildPredicate(FilterExpression.Clause clause, AbstractQuery subqueries, Root resultRoot, Map<String, Join> joins, Parameters parameters) {
+		if (clause instanceof FilterExpression.CompoundClause && ((FilterExpression.CompoundClause) clause).operator == FilterExpression.LogicalOperator.AND) {
+			// conjuncts are grouped into subqueries by the relationships to many they go through
+			return buildCompoundPredicate((FilterExpression.CompoundClause) clause, subqueries, resultRoot, joins, parameters);
+		} else if (subqueries != null && toManyPrefixes(clause, resultRoot.getModel()).length() > 0) {
+			return exists(Collections.singletonList(clause), subqueries, resultRoot, parameters);
+		} else if (clause instanceof FilterExpression.CompoundClause) {
+			return buildCompoundPredicate((FilterExpression.CompoundClause) clause, subqueries, resultRoot, joins, parameters);
 		} else if (clause instanceof FilterExpression.SimpleClause) {
-			return buildSimplePredicate((FilterExpression.SimpleClause) clause, resultRoot, joins);
+			return buildSimplePredicate((FilterExpression.SimpleClause) clause, resultRoot, joins, parameters);
+		} else if (clause instanceof RangeClause) {
+			return buildRangePredicate((RangeClause) clause, resultRoot, joins, parameters);
 		} else {
 			return null;
 		}
 	}
 
-	private Predicate buildCompoundPredicate(FilterExpression.CompoundClause clause, Root resultRoot, Map<Attribute, Join> joins) {
+	/**
+	 * The conjuncts of an <code>and</code> that go through the same relationships to many are tested in one
+	 * <code>exists</code> subquery, so that e.g. <code>roles.name eq Admin and roles.active eq true</code>
+	 * still needs one role to match both.
+	 */
+	private Predicate buildCompoundPredicate(FilterExpression.CompoundClause clause, AbstractQuery subqueries, Root resultRoot, Map<String, Join> joins, Parameters parameters) {
 		Predicate tempPredicate = null;
 		if (clause.operator == FilterExpression.LogicalOperator.AND) {
-			tempPredicate = build.and(buildPredicate(clause.left, resultRoot, joins), buildPredicate(clause.right, resultRoot, joins));
+			List<FilterExpression.Clause> conjuncts = new ArrayList<>();
+			addConjuncts(clause, conjuncts);
+			mergeRanges(conjuncts);
+			List<Predicate> predicates = new ArrayList<>();
+			Map<String, List<FilterExpression.Clause>> correlated = new LinkedHashMap<>();
+			for (FilterExpression.Clause conjunct : conjuncts) {
+				String prefixes = subqueries != null ? toManyPrefixes(conjunct, resultRoot.getModel()) : "";
+				if (prefixes.isEmpty()) {
+					predicates.add(buildPredicate(conjunct, subqueries, resultRoot, joins, parameters));
+				} else {
+					correlated.computeIfAbsent(prefixes, p -> new ArrayList<>()).add(conjunct);
+				}
+			}
+			correlated.values().forEach(c -> predicates.add(exists(c, subqueries, resultRoot, parameters)));
+			tempPredicate = build.and(predicates.toArray(new Predicate[0]));
 		}
 		if (clause.operator == FilterExpression.LogicalOperator.OR) {
-			tempPredicate = build.or(buildPredicate(clause.left, resultRoot, joins), buildPredicate(clause.right, resultRoot, joins));
+			tempPredicate = build.or(buildPredicate(clause.left, subqueries, resultRoot, joins, parameters), buildPredicate(clause.right, subqueries, resultRoot, joins, parameters));
 		}
 		return tempPredicate;
 	}
 
-	private Predicate buildSimplePredicate(FilterExpression.SimpleClause clause, Root resultRoot, Map<Attribute, Join> joins) {
-		Predicate tempPredicate;
-		Path propertyRoot = resultRoot;
-		EntityType<E> entityType = resultRoot.getModel();
-		Path<Date> timestampProperty = null;
-		Path<Calendar> calendarProperty = null;
-		Attribute propertyRootAttribute = null;
-		String leafPropName = null;
-
-		String changeCase = null;
-		Matcher caseMatcher = CASE_PATTERN.matcher(clause.identifier);
-		if (caseMatcher.matches()) {
-			changeCase = caseMatcher.group(1);
-			clause.identifier = caseMatcher.group(2);
-		}
-
-
-		String[] lhs = clause.identifier.split("\\.");
-		Join joinRoot = null;
-		for (String propName : lhs) {
-			propertyRoot = propertyRoot.get(propName);
-			propertyRootAttribute = (Attribute) propertyRoot.getModel();
-			if (propertyRootAttribute == null) {
-				propertyRootAttribute = entityType.getAttribute(propName);
-			}
-			if (Attribute.PersistentAttributeType.MANY_TO_ONE.equals(propertyRootAttribute.getPersistentAttributeType())) {
-				SingularAttribute manyToOne = (SingularAttribute) propertyRootAttribute;
-				entityType = (EntityType) manyToOne.getType();
-				Join joined = joins.get(manyToOne);
-				JoinType jt = JoinType.LEFT;
-				if (!manyToOne.isOptional()) {
-					jt = JoinType.INNER;
-				}
+	private static void addConjuncts(FilterExpression.Clause clause, List<FilterExpression.Clause> conjuncts) {
+		if (clause instanceof FilterExpression.CompoundClause && ((FilterExpression.CompoundClause) clause).operator == FilterExpression.LogicalOperator.AND) {
+			addConjuncts(((FilterExpression.CompoundClause) clause).left, conjuncts);
+			addConjuncts(((FilterExpression.CompoundClause) clause).right, conjuncts);
+		} else {
+			conjuncts.add(clause);
+		}
+	}
 
-				if (joined == null) {
-					joined = (joinRoot != null ? joinRoot : resultRoot).join(manyToOne, jt);
-					joins.put(manyToOne, joined);
-				}
-				propertyRoot = joined;
-				joinRoot = joined;
-			} else if (Attribute.PersistentAttributeType.ONE_TO_MANY.equals(propertyRootAttribute.getPersistentAttributeType())) {
-				PluralAttribute oneToMany = (PluralAttribute) propertyRootAttribute;
-				entityType = (EntityType) oneToMany.getElementType();
-				Join joined = joins.get(oneToMany);
-				JoinType jt = JoinType.LEFT;
-
-				if (joined == null) {
-					if (SetAttribute.class.isAssignableFrom(oneToMany.getClass())) {
-						joined = (joinRoot != null ? joinRoot : resultRoot).joinSet(propName, jt);
-					} else if (ListAttribute.class.isAssignableFrom(oneToMany.getClass())) {
-						joined = (joinRoot != null ? joinRoot : resultRoot).joinList(propName, jt);
-					} else if (CollectionAttribute.class.isAssignableFrom(oneToMany.getClass())) {
-						joined = (joinRoot != null ? joinRoot : resultRoot).joinCollection(propName, jt);
+	/**
+	 * Replaces a <code>ge</code> and a <code>le</code> conjunct on the same property with one
+	 * <code>between</code>, which databases estimate and seek as a single range. Exclusive bounds are left
+	 * alone as <code>between</code> includes both of its bounds.
+	 */
+	private void mergeRanges(List<FilterExpression.Clause> conjuncts) {
+		for (int i = 0; i < conjuncts.size(); i++) {
+			FilterExpression.SimpleClause lower = rangeBound(conjuncts.get(i), FilterExpression.ComparisonOperator.GE);
+			if (lower == null) {
+				continue;
+			}
+			for (int j = 0; j < conjuncts.size(); j++) {
+				FilterExpression.SimpleClause upper = rangeBound(conjuncts.get(j), FilterExpression.ComparisonOperator.LE);
+				if (upper != null && upper.identifier.equals(lower.identifier)) {
+					conjuncts.set(i, new RangeClause(lower, upper));
+					conjuncts.remove(j);
+					if (j < i) {
+						i--;
 					}
-					joins.put(oneToMany, joined);
+					break;
 				}
-				propertyRoot = joined;
-				joinRoot = joined;
 			}
-			leafPropName = propName;
 		}
+	}
 
+	private static FilterExpression.SimpleClause rangeBound(FilterExpression.Clause clause, FilterExpression.ComparisonOperator operator) {
+		if (clause instanceof FilterExpression.SimpleClause) {
+			FilterExpression.SimpleClause simple = (FilterExpression.SimpleClause) clause;
+			if (simple.operator.canonical() == operator && !"null".equalsIgnoreCase(simple.value) && !CASE_PATTERN.matcher(simple.identifier).matches()) {
+				return simple;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A correlated <code>exists</code> subquery in place of joining relationships to many in the query
+	 * itself, which would repeat its rows and need them made distinct again. The relationships are left
+	 * joined inside the subquery, so the clauses match exactly the rows they matched when joined. The
+	 * subquery selects from the entity again rather than correlating the root, as Hibernate turns joins
+	 * of a correlated root into inner joins.
+	 */
+	private Predicate exists(List<FilterExpression.Clause> clauses, AbstractQuery query, Root resultRoot, Parameters parameters) {
+		Subquery<Integer> subquery = query.subquery(Integer.class);
+		Root<E> subqueryRoot = subquery.from(entityClass);
+		Map<String, Join> joins = new HashMap<>();
+		List<FilterExpression.Clause> conjuncts = new ArrayList<>();
+		clauses.forEach(c -> addConjuncts(c, conjuncts));
+		mergeRanges(conjuncts);
+		joinInner(conjuncts, true, subqueryRoot, joins);
+		Predicate[] predicates = new Predicate[conjuncts.size() + 1];
+		predicates[0] = build.equal(subqueryRoot, resultRoot);
+		for (int i = 0; i < conjuncts.size(); i++) {
+			predicates[i + 1] = buildPredicate(conjuncts.get(i), null, subqueryRoot, joins, parameters);
+		}
+		subquery.select(build.literal(1)).where(predicates);
+		return build.exists(subquery);
+	}
+
+	/**
+	 * Joins the relationships of the conjuncts that only match when the related entities exist inner, e.g.
+	 * the address of <code>address.postCode eq "90210"</code>, which leaves the database free to reorder
+	 * the joins. Everything else, such as <code>or</code> branches, <code>eq null</code> and the paths of
+	 * orderBy and groupBy, is left joined and shares the inner joins where it goes through the same
+	 * relationships, as the rows without them are filtered out anyway.
+	 *
+	 * @param toMany true if paths through relationships to many are joined in this query rather than tested
+	 *               in subqueries
+	 */
+	private void joinInner(List<FilterExpression.Clause> conjuncts, boolean toMany, Root root, Map<String, Join> joins) {
+		for (FilterExpression.Clause conjunct : conjuncts) {
+			if (conjunct instanceof FilterExpression.SimpleClause) {
+				FilterExpression.SimpleClause simple = (FilterExpression.SimpleClause) conjunct;
+				AttributePath path = AttributePath.resolve(em.getEntityManagerFactory(), root.getModel(), caseAndPath(simple.identifier)[1]);
+				if (rejectsNulls(simple, path) && (toMany || path.toManyPrefix(true) == null)) {
+					path.joinInner(root, joins);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if a clause never matches a null property, which it is for any comparison with a value
+	 */
+	private static boolean rejectsNulls(FilterExpression.SimpleClause clause, AttributePath path) {
+		if ("null".equalsIgnoreCase(clause.value)) {
+			return clause.operator.canonical() == FilterExpression.ComparisonOperator.NE && !path.isPlural();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the relationships to many joined by the paths of a clause, empty if there are none
+	 */
+	private String toManyPrefixes(FilterExpression.Clause clause, ManagedType<?> type) {
+		Set<String> prefixes = new TreeSet<>();
+		addToManyPrefixes(clause, type, prefixes);
+		return String.join(",", prefixes);
+	}
+
+	private void addToManyPrefixes(FilterExpression.Clause clause, ManagedType<?> type, Set<String> prefixes) {
+		if (clause instanceof FilterExpression.CompoundClause) {
+			addToManyPrefixes(((FilterExpression.CompoundClause) clause).left, type, prefixes);
+			addToManyPrefixes(((FilterExpression.CompoundClause) clause).right, type, prefixes);
+		} else if (clause instanceof FilterExpression.SimpleClause) {
+			FilterExpression.SimpleClause simple = (FilterExpression.SimpleClause) clause;
+			String identifier = caseAndPath(simple.identifier)[1];
+			String prefix = AttributePath.resolve(em.getEntityManagerFactory(), type, identifier).toManyPrefix(!"null".equalsIgnoreCase(simple.value));
+			if (prefix != null) {
+				prefixes.add(prefix);
+			}
+		} else if (clause instanceof RangeClause) {
+			addToManyPrefixes(((RangeClause) clause).lower, type, prefixes);
+		}
+	}
+
+	/**
+	 * @return the case function of an identifier, null if it has none or compares a
+	 * {@link #normalizedCase(String, String) normalized case} attribute instead, and the path it compares
+	 */
+	private String[] caseAndPath(String identifier) {
+		Matcher caseMatcher = CASE_PATTERN.matcher(identifier);
+		if (!caseMatcher.matches()) {
+			return new String[]{null, identifier};
+		}
+		String shadow = normalizedCase.get(caseMatcher.group(1) + "(" + caseMatcher.group(2).trim() + ")");
+		return shadow != null ? new String[]{null, shadow} : new String[]{caseMatcher.group(1), caseMatcher.group(2)};
+	}
+
+	/**
+	 * Values are bound as parameters rather than embedded as literals so that filters which only differ by
+	 * value produce the same query string and share the provider's query plan and the database's statements.
+	 */
+	private Predicate buildSimplePredicate(FilterExpression.SimpleClause clause, Root resultRoot, Map<String, Join> joins, Parameters parameters) {
+		Predicate tempPredicate;
+		Expression<Date> timestampProperty = null;
+		Expression<Calendar> calendarProperty = null;
+
+		// the clause may be shared through the parse cache so never rewrite it in place
+		String[] caseAndPath = caseAndPath(clause.identifier);
+		String changeCase = caseAndPath[0];
+		String identifier = caseAndPath[1];
 
-		Class propertyJavaType = propertyRoot.getJavaType();
 		Object discriminatorEntity = "null".equalsIgnoreCase(clause.value) ? null : clause.value;
+		AttributePath attributePath = AttributePath.resolve(em.getEntityManagerFactory(), resultRoot.getModel(), identifier);
+		boolean plural = attributePath.isPlural();
+		// a collection compared with null is tested for emptiness rather than joined
+		Expression propertyRoot = plural && discriminatorEntity == null ? attributePath.applyCollection(resultRoot, joins) : attributePath.apply(resultRoot, joins);
+
+		Class propertyJavaType = propertyRoot.getJavaType();
 		if (changeCase != null && !String.class.isAssignableFrom(propertyJavaType)) {
 			throw new IllegalArgumentException(changeCase + " function on non-string type");
 		}
 		boolean emptySetMatch = discriminatorEntity == null;
+		Binding source = new Binding(parameters.indexOf(clause), -1, propertyJavaType, clause.operator, identifier);
 
 		if (discriminatorEntity != null) {
-			if (propertyJavaType.isEnum()) {
-				discriminatorEntity = Enum.valueOf(propertyJavaType, String.valueOf(discriminatorEntity));
-			} else if (Date.class.isAssignableFrom(propertyJavaType)) {
-				timestampProperty = propertyRoot.getParentPath().get(leafPropName);
-				try {
-					long millisSinceEpoch = Long.parseLong(String.valueOf(discriminatorEntity));
-					discriminatorEntity = new Date(millisSinceEpoch);
-				} catch (NumberFormatException e) {
-					discriminatorEntity = DatatypeConverter.parseDateTime(String.valueOf(discriminatorEntity)).getTime();
-				}
+			if (Date.class.isAssignableFrom(propertyJavaType)) {
+				timestampProperty = propertyRoot;
 			} else if (Calendar.class.isAssignableFrom(propertyJavaType)) {
-				calendarProperty = propertyRoot.getParentPath().get(leafPropName);
-				Calendar tmp = Calendar.getInstance();
-				try {
-					long millisSinceEpoch = Long.parseLong(String.valueOf(discriminatorEntity));
-					tmp.setTimeInMillis(millisSinceEpoch);
-				} catch (NumberFormatException e) {
-					tmp = DatatypeConverter.parseDateTime(String.valueOf(discriminatorEntity));
-				}
-				discriminatorEntity = tmp;
-			} else if (!EnumSet.of(FilterExpression.ComparisonOperator.IN, FilterExpression.ComparisonOperator.NOT_IN).contains(clause.operator) && Number.class.isAssignableFrom(propertyRoot.getJavaType())
-					|| EnumSet.of(FilterExpression.ComparisonOperator.GT, FilterExpression.ComparisonOperator.GTE, FilterExpression.ComparisonOperator.GE, FilterExpression.ComparisonOperator.LT, FilterExpression.ComparisonOperator.LTE, FilterExpression.ComparisonOperator.LE).contains(clause.operator)) {
-				try {
-					discriminatorEntity = new BigDecimal(String.valueOf(discriminatorEntity));
-				} catch (NumberFormatException e) {
-					throw new NumberFormatException("Invalid value for numeric property: " + clause.identifier + " caused by: " + e.getMessage());
-				}
-			} else if (propertyJavaType == boolean.class || propertyJavaType == Boolean.class) {
-				discriminatorEntity = Boolean.valueOf(String.valueOf(discriminatorEntity));
+				calendarProperty = propertyRoot;
 			}
+			discriminatorEntity = convertValue(clause.value, propertyJavaType, clause.operator, identifier);
 		}
 
 		switch (clause.operator) {
 			case EQ: {
-				if (propertyRootAttribute instanceof PluralAttribute && emptySetMatch) {
+				if (plural && emptySetMatch) {
 					tempPredicate = build.isEmpty(propertyRoot);
 				} else if (emptySetMatch) {
 					tempPredicate = build.isNull(propertyRoot);
 				} else {
 					if (changeCase != null) {
 						Expression ignoredCase = "upper".equals(changeCase) ? build.upper(propertyRoot) : build.lower(propertyRoot);
-						tempPredicate = build.equal(ignoredCase, discriminatorEntity);
+						tempPredicate = build.equal(ignoredCase, parameter(discriminatorEntity, source, parameters));
 					} else {
-						tempPredicate = build.equal(propertyRoot, discriminatorEntity);
+						tempPredicate = build.equal(propertyRoot, parameter(discriminatorEntity, source, parameters));
 					}
 				}
 				break;
 			}
 			case NE: case NOT_EQ: {
-				if (propertyRootAttribute instanceof PluralAttribute && emptySetMatch) {
+				if (plural && emptySetMatch) {
 					tempPredicate = build.isNotEmpty(propertyRoot);
 				} else if (emptySetMatch) {
 					tempPredicate = build.isNotNull(propertyRoot);
 				} else {
 					if (changeCase != null) {
 						Expression ignoredCase = "upper".equals(changeCase) ? build.upper(propertyRoot) : build.lower(propertyRoot);
-						tempPredicate = build.notEqual(ignoredCase, discriminatorEntity);
+						tempPredicate = build.notEqual(ignoredCase, parameter(discriminatorEntity, source, parameters));
 					} else {
-						tempPredicate = build.notEqual(propertyRoot, discriminatorEntity);
+						tempPredicate = build.notEqual(propertyRoot, parameter(discriminatorEntity, source, parameters));
 					}
 				}
 				break;
@@ -240,19 +389,31 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 					}
 				} else {
 					Expression<String> exp = propertyRoot;
-					CriteriaBuilder.In in = build.in(exp);
+					List<Expression> values = new ArrayList<>();
 					String[] ids = ((String) discriminatorEntity).split(",");
-					for (String id : ids) {
-						if (Number.class.isAssignableFrom(propertyRoot.getJavaType())) {
-							try {
-								in.value(new BigDecimal(String.valueOf(id.trim())));
-							} catch (NumberFormatException e) {
-								//logger.warn("Invalid value for numeric property: {0}", clause.identifier, e);
-							}
+					boolean inline = exceedsBindParameters(ids.length, parameters);
+					Object last = null;
+					for (int i = 0; i < ids.length; i++) {
+						Object id = convertInValue(ids[i], propertyJavaType);
+						if (id != null) {
+							values.add(inline ? build.literal(id) : parameter(id, source.element(i), parameters));
+							last = id;
 						} else {
-							in.value(id.trim());
+							// invalid numbers are left out so the query depends on the values
+							parameters.cacheable = false;
 						}
 					}
+					if (inline) {
+						parameters.cacheable = false;
+						parameters.inline = true;
+					} else {
+						// repeating the last value pads the list so lists of similar length share one statement
+						int padded = paddedSize(ids.length);
+						for (int i = ids.length; i < padded && last != null; i++) {
+							values.add(parameter(last, source.element(i), parameters));
+						}
+					}
+					Predicate in = in(exp, values);
 					// check property is not null before evaluating in or we get an error
 					Predicate inPredicate = (clause.operator == FilterExpression.ComparisonOperator.IN) ? in : in.not();
 					Predicate notNullPredicate = build.isNotNull(resultRoot);
@@ -264,11 +425,20 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 				if (emptySetMatch) {
 					tempPredicate = build.equal(build.size(propertyRoot), 0);
 				} else {
+					String prefix = likePrefix((String) discriminatorEntity);
 					if (changeCase != null) {
 						Expression ignoredCase = "upper".equals(changeCase) ? build.upper(propertyRoot) : build.lower(propertyRoot);
-						tempPredicate = build.like(ignoredCase, (String) discriminatorEntity);
+						tempPredicate = build.like(ignoredCase, parameter((String) discriminatorEntity, source, parameters));
+					} else if (prefix != null && propertyJavaType == String.class
+							&& DialectCapabilities.forFactory(em.getEntityManagerFactory()).hasCodePointCollation()) {
+						// a range an index can seek; under linguistic collations it would exclude matches, e.g. ab-c
+						// may sort after ab. when punctuation is ignored, and the and-ed like could not restore them
+						tempPredicate = build.and(
+								build.greaterThanOrEqualTo(propertyRoot, parameter(prefix, source.part(Binding.Part.PREFIX), parameters)),
+								build.lessThan(propertyRoot, parameter(prefixEnd(prefix), source.part(Binding.Part.PREFIX_END), parameters)),
+								build.like(propertyRoot, parameter((String) discriminatorEntity, source, parameters)));
 					} else {
-						tempPredicate = build.like(propertyRoot, (String) discriminatorEntity);
+						tempPredicate = build.like(propertyRoot, parameter((String) discriminatorEntity, source, parameters));
 					}
 				}
 				break;
@@ -279,50 +449,61 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 				} else {
 					if (changeCase != null) {
 						Expression ignoredCase = "upper".equals(changeCase) ? build.upper(propertyRoot) : build.lower(propertyRoot);
-						tempPredicate = build.notLike(build.lower(propertyRoot), (String) discriminatorEntity);
+						tempPredicate = build.notLike(build.lower(propertyRoot), parameter((String) discriminatorEntity, source, parameters));
 					} else {
-						tempPredicate = build.notLike(propertyRoot, (String) discriminatorEntity);
+						tempPredicate = build.notLike(propertyRoot, parameter((String) discriminatorEntity, source, parameters));
 					}
 				}
 				break;
 			}
 			case GT: {
 				if (timestampProperty != null) {
-					tempPredicate = build.greaterThan(timestampProperty, (Date) discriminatorEntity);
+					tempPredicate = build.greaterThan(timestampProperty, parameter((Date) discriminatorEntity, source, parameters));
 				} else if (calendarProperty != null) {
-					tempPredicate = build.greaterThan(calendarProperty, (Calendar) discriminatorEntity);
+					tempPredicate = build.greaterThan(calendarProperty, parameter((Calendar) discriminatorEntity, source, parameters));
 				} else {
-					tempPredicate = build.gt(propertyRoot, (Number) discriminatorEntity);
+					tempPredicate = build.gt(propertyRoot, parameter((Number) discriminatorEntity, source, parameters));
 				}
 				break;
 			}
 			case LT: {
 				if (timestampProperty != null) {
-					tempPredicate = build.lessThan(timestampProperty, (Date) discriminatorEntity);
+					tempPredicate = build.lessThan(timestampProperty, parameter((Date) discriminatorEntity, source, parameters));
 				} else if (calendarProperty != null) {
-					tempPredicate = build.lessThan(calendarProperty, (Calendar) discriminatorEntity);
+					tempPredicate = build.lessThan(calendarProperty, parameter((Calendar) discriminatorEntity, source, parameters));
 				} else {
-					tempPredicate = build.lt(propertyRoot, (Number) discriminatorEntity);
+					tempPredicate = build.lt(propertyRoot, parameter((Number) discriminatorEntity, source, parameters));
 				}
 				break;
 			}
 			case GTE: case GE: {
 				if (timestampProperty != null) {
-					tempPredicate = build.greaterThanOrEqualTo(timestampProperty, (Date) discriminatorEntity);
+					tempPredicate = build.greaterThanOrEqualTo(timestampProperty, parameter((Date) discriminatorEntity, source, parameters));
 				} else if (calendarProperty != null) {
-					tempPredicate = build.greaterThanOrEqualTo(calendarProperty, (Calendar) discriminatorEntity);
+					tempPredicate = build.greaterThanOrEqualTo(calendarProperty, parameter((Calendar) discriminatorEntity, source, parameters));
 				} else {
-					tempPredicate = build.greaterThanOrEqualTo(propertyRoot, (BigDecimal) discriminatorEntity);
+					tempPredicate = build.greaterThanOrEqualTo(propertyRoot, parameter((Comparable) discriminatorEntity, source, parameters));
 				}
 				break;
 			}
 			case LTE: case LE: {
 				if (timestampProperty != null) {
-					tempPredicate = build.lessThanOrEqualTo(timestampProperty, (Date) discriminatorEntity);
+					tempPredicate = build.lessThanOrEqualTo(timestampProperty, parameter((Date) discriminatorEntity, source, parameters));
 				} else if (calendarProperty != null) {
-					tempPredicate = build.lessThanOrEqualTo(calendarProperty, (Calendar) discriminatorEntity);
+					tempPredicate = build.lessThanOrEqualTo(calendarProperty, parameter((Calendar) discriminatorEntity, source, parameters));
 				} else {
-					tempPredicate = build.lessThanOrEqualTo(propertyRoot, (BigDecimal) discriminatorEntity);
+					tempPredicate = build.lessThanOrEqualTo(propertyRoot, parameter((Comparable) discriminatorEntity, source, parameters));
+				}
+				break;
+			}
+			case BETWEEN: {
+				if (emptySetMatch || "null".equalsIgnoreCase(clause.upperValue)) {
+					// nothing is between a null bound, as nothing is greater or less than null
+					tempPredicate = build.disjunction();
+				} else {
+					Object upper = convertValue(clause.upperValue, propertyJavaType, clause.operator, identifier);
+					Expression bounded = changeCase == null ? propertyRoot : "upper".equals(changeCase) ? build.upper(propertyRoot) : build.lower(propertyRoot);
+					tempPredicate = build.between(bounded, parameter(discriminatorEntity, source, parameters), parameter(upper, source.part(Binding.Part.UPPER_VALUE), parameters));
 				}
 				break;
 			}
@@ -333,51 +514,301 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 		return tempPredicate;
 	}
 
-	private Path getPath(String field, Root resultRoot, Map<Attribute, Join> joins) {
-		String[] lhs = field.split("\\.");
-		Path propertyRoot = resultRoot;
-		Attribute propertyRootAttribute = null;
-
-		for (String propName : lhs) {
-			propertyRoot = propertyRoot.get(propName);
-			propertyRootAttribute = (Attribute) propertyRoot.getModel();
-			if (Attribute.PersistentAttributeType.MANY_TO_ONE.equals(propertyRootAttribute.getPersistentAttributeType())) {
-				SingularAttribute manyToOne = (SingularAttribute) propertyRootAttribute;
-				Join joined = joins.get(manyToOne);
-				JoinType jt = JoinType.LEFT;
-				if (!manyToOne.isOptional()) {
-					jt = JoinType.INNER;
-				}
+	private Predicate buildRangePredicate(RangeClause range, Root resultRoot, Map<String, Join> joins, Parameters parameters) {
+		Path path = getPath(range.lower.identifier, resultRoot, joins);
+		Class propertyJavaType = path.getJavaType();
+		Object lower = convertValue(range.lower.value, propertyJavaType, range.lower.operator, range.lower.identifier);
+		Object upper = convertValue(range.upper.value, propertyJavaType, range.upper.operator, range.upper.identifier);
+		return build.between(path,
+				parameter(lower, new Binding(parameters.indexOf(range.lower), -1, propertyJavaType, range.lower.operator, range.lower.identifier), parameters),
+				parameter(upper, new Binding(parameters.indexOf(range.upper), -1, propertyJavaType, range.upper.operator, range.upper.identifier), parameters));
+	}
 
-				if (joined == null) {
-					joined = resultRoot.join(manyToOne, jt);
-					joins.put(manyToOne, joined);
-				}
-				propertyRoot = joined;
-			} else if (Attribute.PersistentAttributeType.ONE_TO_MANY.equals(propertyRootAttribute.getPersistentAttributeType())) {
-				PluralAttribute oneToMany = (PluralAttribute) propertyRootAttribute;
-				Join joined = joins.get(oneToMany);
-				JoinType jt = JoinType.LEFT;
-
-				if (joined == null) {
-					if (SetAttribute.class.isAssignableFrom(oneToMany.getClass())) {
-						joined = resultRoot.joinSet(propName, jt);
-					} else if (ListAttribute.class.isAssignableFrom(oneToMany.getClass())) {
-						joined = resultRoot.joinList(propName, jt);
-					} else if (CollectionAttribute.class.isAssignableFrom(oneToMany.getClass())) {
-						joined = resultRoot.joinCollection(propName, jt);
-					}
-					joins.put(oneToMany, joined);
+	/**
+	 * @return the literal start of a pattern that only ends with a wildcard, e.g. <code>abc</code> of
+	 * <code>abc%</code>, null for other patterns
+	 */
+	static String likePrefix(String pattern) {
+		if (pattern == null || pattern.length() < 2 || !pattern.endsWith("%")) {
+			return null;
+		}
+		String prefix = pattern.substring(0, pattern.length() - 1);
+		for (int i = 0; i < prefix.length(); i++) {
+			char c = prefix.charAt(i);
+			// surrogates sort differently by code point and by UTF-16 unit so the range end could be wrong
+			if (c == '%' || c == '_' || Character.isSurrogate(c)) {
+				return null;
+			}
+		}
+		return prefix.charAt(prefix.length() - 1) == Character.MAX_VALUE ? null : prefix;
+	}
+
+	/**
+	 * @return the first string after all strings starting with the prefix
+	 */
+	static String prefixEnd(String prefix) {
+		int last = prefix.length() - 1;
+		return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+	}
+
+	/**
+	 * @return the number of values an <code>in</code> list of the size is padded to, see
+	 * {@link DialectCapabilities#getInListPadding()}. A list that fits into one <code>in</code> list of the
+	 * database is not padded past it and a longer one only up to whole lists.
+	 */
+	private int paddedSize(int size) {
+		DialectCapabilities capabilities = DialectCapabilities.forFactory(em.getEntityManagerFactory());
+		int padding = capabilities.getInListPadding();
+		int padded;
+		if (padding <= 0 || size <= 1) {
+			return size;
+		} else if (size > padding) {
+			padded = (size + padding - 1) / padding * padding;
+		} else {
+			padded = Math.min(Integer.highestOneBit(size - 1) << 1, padding);
+		}
+		int max = capabilities.getMaxInListSize();
+		if (max > 0 && padded > max) {
+			return size <= max ? max : Math.min(padded, (size + max - 1) / max * max);
+		}
+		return padded;
+	}
+
+	/**
+	 * @return true if binding an <code>in</code> list of the size, padded, would take the statement past the
+	 * bind parameters the database allows, see {@link DialectCapabilities#getMaxBindParameters()}
+	 */
+	private boolean exceedsBindParameters(int size, Parameters parameters) {
+		int max = DialectCapabilities.forFactory(em.getEntityManagerFactory()).getMaxBindParameters();
+		return max > 0 && parameters.expressions.size() + paddedSize(size) > max;
+	}
+
+	/**
+	 * Lists longer than the database allows are split into several <code>in</code> lists
+	 */
+	private Predicate in(Expression<?> exp, List<Expression> values) {
+		if (values.isEmpty()) {
+			return build.in(exp);
+		}
+		int max = DialectCapabilities.forFactory(em.getEntityManagerFactory()).getMaxInListSize();
+		if (max <= 0 || values.size() <= max) {
+			// EclipseLink only registers parameters of an in list passed to Expression.in
+			return exp.in(values.toArray(new Expression[0]));
+		}
+		List<Predicate> lists = new ArrayList<>();
+		for (int i = 0; i < values.size(); i += max) {
+			lists.add(exp.in(values.subList(i, Math.min(i + max, values.size())).toArray(new Expression[0])));
+		}
+		return build.or(lists.toArray(new Predicate[0]));
+	}
+
+	private Expression parameter(Object value, Binding source, Parameters parameters) {
+		if (!source.isBindable(value)) {
+			// e.g. a fractional value for an integral property, providers reject parameters of another type
+			parameters.cacheable = false;
+			return build.literal(value);
+		}
+		Class type;
+		if (value instanceof Enum) {
+			type = ((Enum) value).getDeclaringClass();
+		} else if (value instanceof Calendar) {
+			type = Calendar.class;
+		} else if (value instanceof Date) {
+			type = Date.class;
+		} else {
+			type = value.getClass();
+		}
+		ParameterExpression parameter = build.parameter(type);
+		parameters.expressions.add(parameter);
+		parameters.values.add(value);
+		parameters.bindings.add(source);
+		return parameter;
+	}
+
+	/**
+	 * @return the value of a clause converted to the type of the property it is compared with
+	 */
+	private static Object convertValue(String value, Class propertyJavaType, FilterExpression.ComparisonOperator operator, String identifier) {
+		Object discriminatorEntity = value;
+		if (propertyJavaType.isEnum()) {
+			discriminatorEntity = Enum.valueOf(propertyJavaType, value);
+		} else if (Date.class.isAssignableFrom(propertyJavaType)) {
+			try {
+				long millisSinceEpoch = Long.parseLong(value);
+				discriminatorEntity = new Date(millisSinceEpoch);
+			} catch (NumberFormatException e) {
+				discriminatorEntity = DatatypeConverter.parseDateTime(value).getTime();
+			}
+		} else if (Calendar.class.isAssignableFrom(propertyJavaType)) {
+			Calendar tmp = Calendar.getInstance();
+			try {
+				long millisSinceEpoch = Long.parseLong(value);
+				tmp.setTimeInMillis(millisSinceEpoch);
+			} catch (NumberFormatException e) {
+				tmp = DatatypeConverter.parseDateTime(value);
+			}
+			discriminatorEntity = tmp;
+		} else if (!EnumSet.of(FilterExpression.ComparisonOperator.IN, FilterExpression.ComparisonOperator.NOT_IN).contains(operator.canonical()) && isNumeric(propertyJavaType)
+				|| EnumSet.of(FilterExpression.ComparisonOperator.GT, FilterExpression.ComparisonOperator.GTE, FilterExpression.ComparisonOperator.GE, FilterExpression.ComparisonOperator.LT, FilterExpression.ComparisonOperator.LTE, FilterExpression.ComparisonOperator.LE).contains(operator)) {
+			try {
+				discriminatorEntity = toNumber(new BigDecimal(value), propertyJavaType);
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Invalid value for numeric property: " + identifier + " caused by: " + e.getMessage());
+			}
+		} else if (propertyJavaType == boolean.class || propertyJavaType == Boolean.class) {
+			discriminatorEntity = Boolean.valueOf(value);
+		}
+		return discriminatorEntity;
+	}
+
+	/**
+	 * @return an element of an in list converted to the type of the property, null if it is not a valid number
+	 * for a numeric property
+	 */
+	private static Object convertInValue(String id, Class propertyJavaType) {
+		if (isNumeric(propertyJavaType)) {
+			try {
+				return toNumber(new BigDecimal(id.trim()), propertyJavaType);
+			} catch (NumberFormatException e) {
+				//logger.warn("Invalid value for numeric property: {0}", clause.identifier, e);
+				return null;
+			}
+		}
+		return id.trim();
+	}
+
+	/**
+	 * @return the value as the numeric type of the property when it can be represented exactly, so it is
+	 * bound with the column's own type
+	 */
+	static Object toNumber(BigDecimal value, Class propertyType) {
+		try {
+			if (propertyType == Long.class || propertyType == long.class) {
+				return value.longValueExact();
+			} else if (propertyType == Integer.class || propertyType == int.class) {
+				return value.intValueExact();
+			} else if (propertyType == Short.class || propertyType == short.class) {
+				return value.shortValueExact();
+			} else if (propertyType == Byte.class || propertyType == byte.class) {
+				return value.byteValueExact();
+			} else if (propertyType == BigInteger.class) {
+				return value.toBigIntegerExact();
+			} else if (propertyType == Double.class || propertyType == double.class) {
+				return value.doubleValue();
+			} else if (propertyType == Float.class || propertyType == float.class) {
+				return value.floatValue();
+			}
+		} catch (ArithmeticException e) {
+			// fractional or out of range, compare as a decimal
+		}
+		return value;
+	}
+
+	/**
+	 * Parameters are typed so primitive numeric properties need numeric values just like their wrappers
+	 */
+	private static boolean isNumeric(Class type) {
+		return Number.class.isAssignableFrom(wrap(type));
+	}
+
+	private static Class wrap(Class type) {
+		if (!type.isPrimitive()) {
+			return type;
+		}
+		return MethodType.methodType(type).wrap().returnType();
+	}
+
+	private static <T> TypedQuery<T> bind(TypedQuery<T> query, List<ParameterExpression> parameters, List<Object> values) {
+		for (int i = 0; i < parameters.size(); i++) {
+			query.setParameter(parameters.get(i), values.get(i));
+		}
+		return query;
+	}
+
+	private static <T> TypedQuery<T> bind(TypedQuery<T> query, Parameters parameters) {
+		if (parameters.inline && query.getClass().getName().startsWith("org.eclipse.persistence.")) {
+			// EclipseLink binds literals too unless told not to, Hibernate writes numeric ones into the statement
+			query.setHint("eclipselink.jdbc.bind-parameters", "false");
+		}
+		return bind(query, parameters.expressions, parameters.values);
+	}
+
+	/**
+	 * Creates the query from a cached template built for a filter of the same shape, i.e. the same clauses
+	 * with the same null values and in list sizes, and the same select, orderBy and groupBy, binding the
+	 * values of this filter. Otherwise the criteria are built and kept as the template for the shape.
+	 */
+	private <T> TypedQuery<T> createQuery(String kind, Class<T> resultClass, Function<Parameters, CriteriaQuery<T>> criteria) {
+		return createQuery(kind, resultClass, criteria, Collections.emptyList());
+	}
+
+	/**
+	 * @param extraValues values the criteria bind with {@link Parameters#extra(Object, Class, CriteriaBuilder)}
+	 *                    rather than from the filter
+	 */
+	private <T> TypedQuery<T> createQuery(String kind, Class<T> resultClass, Function<Parameters, CriteriaQuery<T>> criteria, List<Object> extraValues) {
+		StringBuilder shape = new StringBuilder();
+		List<FilterExpression.SimpleClause> clauses = new ArrayList<>();
+		if (expression != null && filter.trim().length() > 0) {
+			appendShape(expression.getClause(), shape, clauses, this::paddedSize);
+		}
+		List<Object> key = Arrays.asList(kind, entityClass, resultClass, shape.toString(),
+				fieldList(selectFields), fieldList(orderByFields), fieldList(groupByFields), normalizedCase.toString());
+
+		QueryTemplateCache cache = QueryTemplateCache.forFactory(em.getEntityManagerFactory());
+		QueryTemplate template = cache.get(key);
+		if (template != null) {
+			List<Object> values = template.valuesOf(clauses, extraValues);
+			if (values != null) {
+				return bind(em.createQuery((CriteriaQuery<T>) template.query), template.parameters, values);
+			}
+		}
+
+		Parameters parameters = new Parameters(extraValues);
+		CriteriaQuery<T> query = criteria.apply(parameters);
+		if (parameters.cacheable) {
+			cache.put(key, new QueryTemplate(query, parameters));
+		}
+		return bind(em.createQuery(query), parameters);
+	}
+
+	private static void appendShape(FilterExpression.Clause clause, StringBuilder shape, List<FilterExpression.SimpleClause> clauses, IntUnaryOperator inListSize) {
+		if (clause instanceof FilterExpression.CompoundClause) {
+			FilterExpression.CompoundClause compound = (FilterExpression.CompoundClause) clause;
+			shape.append('(');
+			appendShape(compound.left, shape, clauses, inListSize);
+			shape.append(") ").append(compound.operator).append(" (");
+			appendShape(compound.right, shape, clauses, inListSize);
+			shape.append(')');
+		} else if (clause instanceof FilterExpression.SimpleClause) {
+			FilterExpression.SimpleClause simple = (FilterExpression.SimpleClause) clause;
+			clauses.add(simple);
+			shape.append(simple.identifier).append(' ').append(simple.operator).append(' ');
+			if ("null".equalsIgnoreCase(simple.value)) {
+				shape.append("null");
+			} else {
+				shape.append('?').append(inListSize.applyAsInt(simple.value.split(",").length));
+				if (likePrefix(simple.value) != null) {
+					shape.append('^');
 				}
-				propertyRoot = joined;
+			}
+			if (simple.operator == FilterExpression.ComparisonOperator.BETWEEN) {
+				shape.append(" and ").append("null".equalsIgnoreCase(simple.upperValue) ? "null" : "?");
 			}
 		}
-		return propertyRoot;
 	}
 
-	private void prepareQuery(CriteriaQuery selectQ, Root selectRoot, Map<Attribute, Join> joins) {
+	private static String fieldList(String[] fields) {
+		return fields == null ? "" : String.join(",", fields);
+	}
+
+	private Path getPath(String field, Root resultRoot, Map<String, Join> joins) {
+		return AttributePath.resolve(em.getEntityManagerFactory(), resultRoot.getModel(), field).apply(resultRoot, joins);
+	}
 
-		buildPredicate(selectQ, selectRoot, joins);
+	private void prepareQuery(CriteriaQuery selectQ, Root selectRoot, Map<String, Join> joins, Parameters parameters) {
+
+		buildPredicate(selectQ, selectRoot, joins, parameters);
 
 		if (this.selectFields != null && this.selectFields.length > 0) {
 			List<Selection<?>> multiSelection = new ArrayList<>();
@@ -402,16 +833,16 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 							break;
 					}
 				} else {
-					multiSelection.add(selectRoot.get(f));
+					multiSelection.add(getPath(f, selectRoot, joins));
 				}
 			}
 			selectQ.multiselect(multiSelection);
 		} else {
-			selectQ.select(selectRoot).distinct(true);
+			selectQ.select(selectRoot);
 		}
 	}
 
-	private void prepareGroupBy(AbstractQuery selectQ, Root selectRoot, Map<Attribute, Join> joins) {
+	private void prepareGroupBy(AbstractQuery selectQ, Root selectRoot, Map<String, Join> joins) {
 		if (groupByFields != null && groupByFields.length > 0) {
 			List<Expression> groupings =
 					Arrays.stream(groupByFields).map(f -> getPath(f, selectRoot, joins)).collect(Collectors.toList());
@@ -419,12 +850,29 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 		}
 	}
 
-	private <T> TypedQuery<T> prepareSelect(Class<T> resultClass) {
-		Map<Attribute, Join> joins = new HashMap<>();
+	<T> TypedQuery<T> prepareSelect(Class<T> resultClass) {
+		return createQuery("select", resultClass, parameters -> selectCriteria(resultClass, parameters));
+	}
+
+	private <T> CriteriaQuery<T> selectCriteria(Class<T> resultClass, Parameters parameters) {
+		return selectCriteria(resultClass, parameters, orderByFields, false);
+	}
+
+	/**
+	 * @param seek true to only select rows ordered after the extra values of the parameters
+	 */
+	private <T> CriteriaQuery<T> selectCriteria(Class<T> resultClass, Parameters parameters, String[] orderByFields, boolean seek) {
+		Map<String, Join> joins = new HashMap<>();
 
 		CriteriaQuery selectQ = build.createQuery(resultClass);
 		Root<E> selectRoot = selectQ.from(this.entityClass);
-		prepareQuery(selectQ, selectRoot, joins);
+		prepareQuery(selectQ, selectRoot, joins, parameters);
+
+		if (seek) {
+			Predicate after = seekPredicate(orderByFields, selectRoot, joins, parameters);
+			Predicate restriction = selectQ.getRestriction();
+			selectQ.where(restriction == null ? after : build.and(restriction, after));
+		}
 
 		if (orderByFields != null && orderByFields.length > 0) {
 			List<Order> orders = new ArrayList<>();
@@ -440,76 +888,985 @@ public class JpaELFilterImpl<E> extends ELFilter<E> {
 		}
 
 		prepareGroupBy(selectQ, selectRoot, joins);
-		return em.createQuery(selectQ);
+		if ((selectFields == null || selectFields.length == 0) && joinsToMany(joins)) {
+			// only ordering or grouping by a path through a relationship to many still joins it
+			selectQ.distinct(true);
+		}
+		return selectQ;
+	}
+
+	private static boolean joinsToMany(Map<String, Join> joins) {
+		return joins.values().stream().anyMatch(j -> j.getAttribute() instanceof PluralAttribute);
+	}
+
+	/**
+	 * Keyset (seek) paging: rather than skipping rows, each page selects the rows ordered after the last row
+	 * of the previous page, so deep pages cost the same as the first. Rows are ordered by the orderBy fields
+	 * followed by the id attributes, which break ties. Nulls of order fields are placed where the database
+	 * sorts them, see {@link DialectCapabilities#nullsSortFirst()}; where that is not known order fields must
+	 * not be optional.
+	 *
+	 * @param continuation null for the first page, otherwise {@link KeysetPage#getContinuation()} of the
+	 *                     previous page of the same filter and ordering
+	 * @throws IllegalArgumentException if the limit is not positive, the results are not entities, an order
+	 *                                  field is optional where the null ordering is unknown or the continuation
+	 *                                  is not valid for this filter and ordering
+	 */
+	public <T> KeysetPage<T> getResultPage(Class<T> resultClass, int limit, String continuation) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		if (!entityClass.isAssignableFrom(resultClass) || selectFields != null && selectFields.length > 0
+				|| groupByFields != null && groupByFields.length > 0) {
+			throw new IllegalArgumentException("Keyset paging requires entity results");
+		}
+		String[] keys = keysetFields();
+		if (DialectCapabilities.forFactory(em.getEntityManagerFactory()).nullsSortFirst() == null) {
+			for (String key : keys) {
+				String field = key.startsWith("-") ? key.substring(1) : key;
+				if (AttributePath.resolve(em.getEntityManagerFactory(), em.getMetamodel().managedType(entityClass), field).isOptional()) {
+					throw new IllegalArgumentException("Keyset paging by optional " + field + " needs the database's null ordering, set "
+							+ DialectCapabilities.PREFIX + "nulls_first");
+				}
+			}
+		}
+		String fingerprint = Integer.toHexString(Arrays.asList(entityClass.getName(), filter, String.join(",", keys)).hashCode());
+
+		List<Object> after = continuation != null ? KeysetToken.decode(continuation, fingerprint, keys.length) : null;
+		TypedQuery<T> query;
+		if (after == null) {
+			query = createQuery("page", resultClass, parameters -> selectCriteria(resultClass, parameters, keys, false));
+		} else {
+			// null values are compared with is null rather than bound so they are part of the shape
+			StringBuilder kind = new StringBuilder("seek:");
+			after.forEach(v -> kind.append(v == null ? 'n' : 'v'));
+			query = createQuery(kind.toString(), resultClass, parameters -> selectCriteria(resultClass, parameters, keys, true), after);
+		}
+
+		List<T> results = withBatchFetch(withFetchGraph(query, resultClass, null), resultClass).setMaxResults(limit + 1).getResultList();
+		if (results.size() <= limit) {
+			return new KeysetPage<>(fetchCollections(resultClass, results), null);
+		}
+		results = fetchCollections(resultClass, new ArrayList<>(results.subList(0, limit)));
+		T last = results.get(limit - 1);
+		List<Object> lastValues = new ArrayList<>(keys.length);
+		for (String key : keys) {
+			lastValues.add(PropertyAccessors.get(last, key.startsWith("-") ? key.substring(1) : key));
+		}
+		return new KeysetPage<>(results, KeysetToken.encode(fingerprint, lastValues));
+	}
+
+	/**
+	 * @return the orderBy fields followed by the id attributes that are not already ordered by
+	 */
+	private String[] keysetFields() {
+		List<String> keys = new ArrayList<>();
+		if (orderByFields != null) {
+			keys.addAll(Arrays.asList(orderByFields));
+		}
+		for (String id : idFields()) {
+			if (!keys.contains(id) && !keys.contains("-" + id)) {
+				keys.add(id);
+			}
+		}
+		return keys.toArray(new String[0]);
+	}
+
+	/**
+	 * @return the paths of the id attributes, of the parts of an embedded id, in name order
+	 */
+	private List<String> idFields() {
+		EntityType<E> type = em.getMetamodel().entity(entityClass);
+		List<String> ids = new ArrayList<>();
+		if (type.hasSingleIdAttribute()) {
+			SingularAttribute<? super E, ?> id = type.getId(type.getIdType().getJavaType());
+			if (id.getType() instanceof ManagedType) {
+				// embedded id
+				for (Attribute<?, ?> part : ((ManagedType<?>) id.getType()).getAttributes()) {
+					ids.add(id.getName() + "." + part.getName());
+				}
+			} else {
+				ids.add(id.getName());
+			}
+		} else if (type.getIdType() == null || Type.PersistenceType.BASIC.equals(type.getIdType().getPersistenceType())) {
+			// several ids without an id class
+			type.getSingularAttributes().stream().filter(SingularAttribute::isId).forEach(a -> ids.add(a.getName()));
+		} else {
+			type.getIdClassAttributes().forEach(a -> ids.add(a.getName()));
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * <code>(k1 > v1) or (k1 = v1 and k2 > v2) or ...</code>, with less than for descending keys
+	 */
+	private Predicate seekPredicate(String[] keys, Root root, Map<String, Join> joins, Parameters parameters) {
+		// unknown only if no order field can be null
+		boolean nullsFirst = !Boolean.FALSE.equals(DialectCapabilities.forFactory(em.getEntityManagerFactory()).nullsSortFirst());
+		List<Predicate> alternatives = new ArrayList<>();
+		List<Predicate> equalSoFar = new ArrayList<>();
+		for (int i = 0; i < keys.length; i++) {
+			boolean descending = keys[i].startsWith("-");
+			String field = descending ? keys[i].substring(1) : keys[i];
+			Path path = getPath(field, root, joins);
+			boolean isNull = parameters.extraValues.get(i) == null;
+			Expression value = isNull ? null : parameters.extra(i, path.getJavaType(), field, build);
+
+			// in the direction of this key, do nulls come after the other values
+			boolean nullsAfter = nullsFirst == descending;
+			Predicate beyond;
+			if (isNull) {
+				beyond = nullsAfter ? build.disjunction() : build.isNotNull(path);
+			} else {
+				beyond = descending ? build.lessThan(path, value) : build.greaterThan(path, value);
+				if (nullsAfter) {
+					beyond = build.or(beyond, build.isNull(path));
+				}
+			}
+			List<Predicate> alternative = new ArrayList<>(equalSoFar);
+			alternative.add(beyond);
+			alternatives.add(build.and(alternative.toArray(new Predicate[0])));
+			equalSoFar.add(isNull ? build.isNull(path) : build.equal(path, value));
+		}
+		return build.or(alternatives.toArray(new Predicate[0]));
 	}
 
 	public <T> T getSingleResult(Class<T> resultClass) {
-		return prepareSelect(resultClass).getSingleResult();
+		T result = withBatchFetch(withFetchGraph(prepareSelect(resultClass), resultClass, null), resultClass).getSingleResult();
+		fetchCollections(resultClass, Collections.singletonList(result));
+		return result;
 	}
 
 	public <T> List<T> getResultList(Class<T> resultClass, int limit, int skip) {
 		return getResultList(resultClass, limit, skip, null);
 	}
 
+	/**
+	 * @param graph the load graph of the entities, null for one of the {@link #fetch(String...) fetch} paths
+	 *              through relationships to one
+	 */
 	public <T> List<T> getResultList(Class<T> resultClass, int limit, int skip, EntityGraph graph) {
-		return prepareSelect(resultClass).setMaxResults(limit).setFirstResult(skip).setHint("javax.persistence.loadgraph", graph).getResultList();
+		List<T> results = withBatchFetch(withFetchGraph(prepareSelect(resultClass), resultClass, graph), resultClass).setMaxResults(limit).setFirstResult(skip).getResultList();
+		return fetchCollections(resultClass, results);
+	}
+
+	private boolean returnsEntities(Class<?> resultClass) {
+		return entityClass.isAssignableFrom(resultClass) && (selectFields == null || selectFields.length == 0)
+				&& (groupByFields == null || groupByFields.length == 0);
+	}
+
+	private <T> TypedQuery<T> withFetchGraph(TypedQuery<T> query, Class<T> resultClass, EntityGraph graph) {
+		EntityGraph loadGraph = graph != null ? graph : returnsEntities(resultClass) ? fetchGraph() : null;
+		return loadGraph != null ? query.setHint("javax.persistence.loadgraph", loadGraph) : query;
+	}
+
+	/**
+	 * Fetch paths through relationships to one are loaded with the entities by a load graph of the query.
+	 *
+	 * @return the graph, null if there are no such paths
+	 */
+	private EntityGraph<E> fetchGraph() {
+		if (fetchFields == null || fetchFields.length == 0) {
+			return null;
+		}
+		EntityGraph<E> graph = null;
+		Map<String, Subgraph> subgraphs = new HashMap<>();
+		List<String[]> leaves = new ArrayList<>();
+		for (String field : fetchFields) {
+			if (AttributePath.resolve(em.getEntityManagerFactory(), em.getMetamodel().managedType(entityClass), field).isToMany()) {
+				continue;
+			}
+			if (graph == null) {
+				graph = em.createEntityGraph(entityClass);
+			}
+			String[] names = field.split("\\.");
+			Subgraph parent = null;
+			for (int i = 0; i < names.length - 1; i++) {
+				String prefix = String.join(".", Arrays.copyOf(names, i + 1));
+				Subgraph subgraph = subgraphs.get(prefix);
+				if (subgraph == null) {
+					subgraph = parent == null ? graph.addSubgraph(names[i]) : parent.addSubgraph(names[i]);
+					subgraphs.put(prefix, subgraph);
+				}
+				parent = subgraph;
+			}
+			leaves.add(names);
+		}
+		for (String[] names : leaves) {
+			// a relationship with a subgraph of its own is loaded already
+			if (!subgraphs.containsKey(String.join(".", names))) {
+				String attribute = names[names.length - 1];
+				Subgraph parent = subgraphs.get(String.join(".", Arrays.copyOf(names, names.length - 1)));
+				if (parent == null) {
+					graph.addAttributeNodes(attribute);
+				} else {
+					parent.addAttributeNodes(attribute);
+				}
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * Fetch paths through relationships to many are loaded by one query per path for the entities of the
+	 * results, as fetch joining them in the query of the results would repeat its rows and make providers
+	 * limit the results in memory rather than in the database. Only the collections are filled in, the state
+	 * of the entities is left as it is in the persistence context.
+	 */
+	private <T> List<T> fetchCollections(Class<T> resultClass, List<T> results) {
+		if (fetchFields == null || results.isEmpty() || !returnsEntities(resultClass)) {
+			return results;
+		}
+		boolean eclipseLink = em.getDelegate().getClass().getName().startsWith("org.eclipse.persistence.");
+		DialectCapabilities capabilities = DialectCapabilities.forFactory(em.getEntityManagerFactory());
+		List<String> ids = idFields();
+		int chunk = capabilities.getMaxInListSize() > 0 ? capabilities.getMaxInListSize() : results.size();
+		if (capabilities.getMaxBindParameters() > 0) {
+			chunk = Math.min(chunk, capabilities.getMaxBindParameters() / ids.size());
+		}
+		for (String field : fetchFields) {
+			AttributePath path = AttributePath.resolve(em.getEntityManagerFactory(), em.getMetamodel().managedType(entityClass), field);
+			if (!path.isToMany()) {
+				continue;
+			} else if (eclipseLink) {
+				// EclipseLink ignores the fetched rows of entities it already has, the collections are read in
+				// batches of the results by the batch hint of their query instead
+				String[] names = field.split("\\.");
+				results.forEach(entity -> load(entity, names, 0));
+				continue;
+			}
+			for (int i = 0; i < results.size(); i += chunk) {
+				CriteriaQuery<E> fetchQ = build.createQuery(entityClass);
+				Root<E> fetchRoot = fetchQ.from(entityClass);
+				path.fetch(fetchRoot);
+				Map<ParameterExpression, Object> values = new LinkedHashMap<>();
+				fetchQ.select(fetchRoot).where(identifies(results.subList(i, Math.min(i + chunk, results.size())), ids, fetchRoot, values));
+				TypedQuery<E> fetchQuery = em.createQuery(fetchQ);
+				values.forEach(fetchQuery::setParameter);
+				// the entities are loaded already so only their collections are filled in
+				fetchQuery.getResultList();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Reads the relationships of the path from the entity by walking through them
+	 */
+	private static void load(Object entity, String[] names, int from) {
+		Object value = PropertyAccessors.get(entity, names[from]);
+		Iterable<?> values = value instanceof Map ? ((Map<?, ?>) value).values()
+				: value instanceof Iterable ? (Iterable<?>) value : Collections.singletonList(value);
+		for (Object next : values) {
+			if (next != null && from + 1 < names.length) {
+				load(next, names, from + 1);
+			}
+		}
+	}
+
+	/**
+	 * Has EclipseLink read the collections of the fetch paths for all the results of the query together when
+	 * the first of them is read
+	 */
+	private <T> TypedQuery<T> withBatchFetch(TypedQuery<T> query, Class<T> resultClass) {
+		if (fetchFields == null || !returnsEntities(resultClass) || !query.getClass().getName().startsWith("org.eclipse.persistence.")) {
+			return query;
+		}
+		for (String field : fetchFields) {
+			if (AttributePath.resolve(em.getEntityManagerFactory(), em.getMetamodel().managedType(entityClass), field).isToMany()) {
+				// the first part of the hint is the alias of the root
+				query.setHint("eclipselink.batch", "e." + field);
+			}
+		}
+		return query.setHint("eclipselink.batch.type", "IN");
+	}
+
+	/**
+	 * Entities are matched by their ids as not every provider binds entities as parameters. The ids are bound
+	 * as parameters, padded like the <code>in</code> lists of filters.
+	 */
+	private Predicate identifies(List<?> entities, List<String> ids, Root<E> root, Map<ParameterExpression, Object> values) {
+		Map<String, Join> joins = new HashMap<>();
+		List<Object> padded = new ArrayList<>(entities);
+		int size = paddedSize(entities.size());
+		int maxBind = DialectCapabilities.forFactory(em.getEntityManagerFactory()).getMaxBindParameters();
+		for (int i = entities.size(); i < size && (maxBind <= 0 || size * ids.size() <= maxBind); i++) {
+			padded.add(entities.get(entities.size() - 1));
+		}
+		if (ids.size() == 1) {
+			Path<?> id = getPath(ids.get(0), root, joins);
+			List<Expression> parameters = new ArrayList<>();
+			for (Object entity : padded) {
+				ParameterExpression parameter = build.parameter(id.getJavaType());
+				values.put(parameter, PropertyAccessors.get(entity, ids.get(0)));
+				parameters.add(parameter);
+			}
+			return in(id, parameters);
+		}
+		List<Predicate> alternatives = new ArrayList<>();
+		for (Object entity : padded) {
+			List<Predicate> equal = new ArrayList<>();
+			for (String id : ids) {
+				Path<?> idPath = getPath(id, root, joins);
+				ParameterExpression parameter = build.parameter(idPath.getJavaType());
+				values.put(parameter, PropertyAccessors.get(entity, id));
+				equal.add(build.equal(idPath, parameter));
+			}
+			alternatives.add(build.and(equal.toArray(new Predicate[0])));
+		}
+		return build.or(alternatives.toArray(new Predicate[0]));
+	}
+
+	/**
+	 * A page of results with the total count. The count query is skipped when the page is not full, as the
+	 * total is then known, unless the page is past the last result.
+	 */
+	public <T> ResultPage<T> getPage(Class<T> resultClass, int limit, int skip) {
+		List<T> results = getResultList(resultClass, limit, skip);
+		if (isLastPage(results, limit, skip)) {
+			return new ResultPage<>(results, skip + results.size());
+		}
+		return new ResultPage<>(results, count());
+	}
+
+	/**
+	 * Like {@link #getPage(Class, int, int)}, but the count runs at the same time as the page query, with its
+	 * own entity manager on the executor. The count only sees committed data. When the page turns out to be the
+	 * last one the count is dropped if the executor has not started it yet; once started it is not interrupted
+	 * and runs to completion, holding its connection, with its result ignored.
+	 */
+	public <T> ResultPage<T> getPage(Class<T> resultClass, int limit, int skip, Executor executor) {
+		FilterPlan plan = toPlan();
+		EntityManagerFactory emf = em.getEntityManagerFactory();
+		CompletableFuture<Long> total = CompletableFuture.supplyAsync(() -> {
+			EntityManager countEm = emf.createEntityManager();
+			try {
+				JpaELFilterImpl<E> counter = plan.bind(countEm, entityClass);
+				counter.normalizedCase.putAll(normalizedCase);
+				return counter.count();
+			} finally {
+				countEm.close();
+			}
+		}, executor);
+
+		List<T> results;
+		try {
+			results = getResultList(resultClass, limit, skip);
+		} catch (RuntimeException e) {
+			total.cancel(false);
+			throw e;
+		}
+		if (isLastPage(results, limit, skip)) {
+			total.cancel(false);
+			return new ResultPage<>(results, skip + results.size());
+		}
+		try {
+			return new ResultPage<>(results, total.join());
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	private static boolean isLastPage(List<?> results, int limit, int skip) {
+		return results.size() < limit && (skip == 0 || !results.isEmpty());
+	}
+
+	/**
+	 * {@link #getResultStream(Class, int, boolean)} keeping the entities in the persistence context
+	 */
+	public <T> Stream<T> getResultStream(Class<T> resultClass, int fetchSize) {
+		return getResultStream(resultClass, fetchSize, false);
+	}
+
+	/**
+	 * Streams the results through a provider cursor (a scrollable result for Hibernate and EclipseLink, pages of
+	 * <code>fetchSize</code> rows for other providers) rather than reading them all into a list. The stream must
+	 * be closed to release the cursor. Only {@link #fetch(String...) fetch} paths through relationships to one
+	 * are loaded with the entities.
+	 *
+	 * @param detach whether entities are detached from the persistence context in batches of
+	 *               <code>fetchSize</code> as the stream moves past them, so memory stays bounded however many
+	 *               rows match. The persistence context cannot tell which entities the caller held before, so
+	 *               those that are among the results are detached as well, losing changes not yet flushed (as
+	 *               under {@link javax.persistence.FlushModeType#COMMIT}), and the detach cascades along
+	 *               relationships with {@link javax.persistence.CascadeType#DETACH} or <code>ALL</code>.
+	 */
+	public <T> Stream<T> getResultStream(Class<T> resultClass, int fetchSize, boolean detach) {
+		if (fetchSize <= 0) {
+			throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+		}
+		TypedQuery<T> query = withFetchGraph(prepareSelect(resultClass), resultClass, null);
+		String provider = query.getClass().getName();
+
+		Iterator<T> cursor;
+		Runnable close;
+		if (provider.startsWith("org.hibernate.")) {
+			Stream<T> results = HibernateCursor.stream(query, fetchSize);
+			cursor = results.iterator();
+			close = results::close;
+		} else if (provider.startsWith("org.eclipse.persistence.")) {
+			Object scrollable = query
+					.setHint("eclipselink.cursor.scrollable", true)
+					.setHint("eclipselink.cursor.scrollable.result-set-type", "ForwardOnly")
+					.setHint("eclipselink.jdbc.fetch-size", fetchSize)
+					.getSingleResult();
+			cursor = (Iterator<T>) scrollable;
+			close = () -> closeCursor(scrollable);
+		} else {
+			cursor = new PagedIterator<>(query, fetchSize);
+			close = () -> { };
+		}
+
+		if (detach && entityClass.isAssignableFrom(resultClass)) {
+			cursor = new DetachingIterator<>(em, cursor, fetchSize);
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(close);
 	}
 
+	/**
+	 * {@link #forEach(Class, int, boolean, Consumer)} keeping the entities in the persistence context
+	 */
+	public <T> long forEach(Class<T> resultClass, int fetchSize, Consumer<? super T> action) {
+		return forEach(resultClass, fetchSize, false, action);
+	}
+
+	/**
+	 * Passes each result to the action as it is read from a cursor, see {@link #getResultStream(Class, int, boolean)}.
+	 *
+	 * @return the number of results
+	 */
+	public <T> long forEach(Class<T> resultClass, int fetchSize, boolean detach, Consumer<? super T> action) {
+		long[] count = {0};
+		try (Stream<T> results = getResultStream(resultClass, fetchSize, detach)) {
+			results.forEach(r -> {
+				action.accept(r);
+				count[0]++;
+			});
+		}
+		return count[0];
+	}
+
+	private static void closeCursor(Object cursor) {
+		try {
+			cursor.getClass().getMethod("close").invoke(cursor);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot close cursor " + cursor.getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * Counts one id column of the matching rows. Paths through relationships to many are tested in
+	 * <code>exists</code> subqueries rather than joined, so rows are never repeated and need neither a
+	 * distinct count, which many databases cannot do over the several columns of a composite id, nor grouping.
+	 */
 	public Long count() {
+		return createQuery("count", Long.class, this::countCriteria).getSingleResult();
+	}
 
-		Map<Attribute, Join> joins = new HashMap<>();
+	/**
+	 * Reads the id of at most one match, limited with the database's <code>limit</code> or
+	 * <code>fetch first</code>, rather than counting every match
+	 */
+	@Override
+	public boolean exists() {
+		return !createQuery("exists", Object.class, this::idCriteria).setMaxResults(1).getResultList().isEmpty();
+	}
+
+	/**
+	 * Reads the ids of at most <code>max</code> matches, so is meant for small limits such as a "1000+" badge
+	 */
+	@Override
+	public long countUpTo(long max) {
+		if (max <= 0) {
+			return 0;
+		} else if (max >= Integer.MAX_VALUE) {
+			return count();
+		}
+		return createQuery("exists", Object.class, this::idCriteria).setMaxResults((int) max).getResultList().size();
+	}
+
+	/**
+	 * {@link #approximateCount(int)} with a sample of {@value #DEFAULT_SAMPLE_SIZE} rows
+	 */
+	@Override
+	public CountEstimate approximateCount() {
+		return approximateCount(DEFAULT_SAMPLE_SIZE);
+	}
+
+	/**
+	 * Without a filter the number of rows is read from the database statistics where the dialect has them
+	 * (see {@link DialectCapabilities#getRowEstimateQuery()}). Otherwise the matches among about
+	 * <code>sampleSize</code> rows are counted and extrapolated to the whole table, whose size comes from the
+	 * statistics or is counted when they do not show more rows than the sample. Tables no larger than the
+	 * sample are counted exactly.
+	 * <p>
+	 * With a single integral id the sample is {@value #SAMPLE_BUCKETS} ranges of ids spread evenly between
+	 * the lowest and highest id, so filters correlated with the id, e.g. by creation date, are sampled across
+	 * their range, and the error bound is the half width of a Wilson score interval (which stays wide when no
+	 * sampled row matches). Other ids can only be sampled as the first rows in id order, whose matches say
+	 * nothing about the rest of the table for such filters, so the error bound of those estimates is unknown
+	 * (-1).
+	 */
+	public CountEstimate approximateCount(int sampleSize) {
+		Long tableRows = rowEstimate();
+		if (expression == null || filter.trim().isEmpty()) {
+			return tableRows != null ? CountEstimate.estimated(tableRows, -1) : CountEstimate.exact(count());
+		}
+
+		List<String> ids = idFields();
+		if (ids.size() == 1) {
+			Class idType = wrap(getPath(ids.get(0), build.createQuery().from(entityClass), new HashMap<>()).getJavaType());
+			if (idType == Long.class || idType == Integer.class || idType == Short.class || idType == Byte.class || idType == BigInteger.class) {
+				return spreadSampleCount(ids.get(0), idType, Math.max(sampleSize, 1), tableRows);
+			}
+		}
+		return firstRowsCount(ids, Math.max(sampleSize, 1), tableRows);
+	}
+
+	private CountEstimate spreadSampleCount(String id, Class idType, int sampleSize, Long tableRows) {
+		CriteriaQuery<Object[]> rangeQ = build.createQuery(Object[].class);
+		Path rangePath = getPath(id, rangeQ.from(entityClass), new HashMap<>());
+		rangeQ.multiselect(build.min(rangePath), build.max(rangePath));
+		Object[] range = em.createQuery(rangeQ).getSingleResult();
+		if (range[0] == null) {
+			return CountEstimate.exact(0);
+		}
+		// statistics that are stale or missing, e.g. of a table never analyzed, can show fewer rows than the sample
+		long total = tableRows != null && tableRows > sampleSize ? tableRows : rangeCount(id, null, false);
+		long min = ((Number) range[0]).longValue();
+		double span = (double) ((Number) range[1]).longValue() - min + 1;
+		int buckets = Math.min(SAMPLE_BUCKETS, sampleSize);
+		long stride = (long) (span / buckets);
+		long width = Math.max(1, Math.round(span * sampleSize / total / buckets));
+		if (total <= sampleSize || width >= stride) {
+			return CountEstimate.exact(count());
+		}
+
+		List<Object[]> ranges = new ArrayList<>();
+		for (int i = 0; i < buckets; i++) {
+			long low = min + i * stride;
+			ranges.add(new Object[]{ofType(low, idType), ofType(low + width - 1, idType)});
+		}
+		long sampled = rangeCount(id, ranges, false);
+		if (sampled >= total) {
+			total = rangeCount(id, null, false);
+		}
+		if (sampled == 0 || sampled >= total) {
+			// ids too sparse to hit, or statistics far off
+			return firstRowsCount(Collections.singletonList(id), sampleSize, tableRows);
+		}
+		long matched = rangeCount(id, ranges, true);
+		double selectivity = (double) matched / sampled;
+		double finitePopulation = Math.sqrt((double) (total - sampled) / (total - 1));
+		double error = wilsonError(matched, sampled) * finitePopulation * total;
+		return CountEstimate.estimated(Math.round(selectivity * total), Math.max(Math.round(error), 1));
+	}
+
+	/**
+	 * The first rows in the order of all id fields are the sample, with matches told apart by their ids, so
+	 * ids of several fields or of any type bound the sample exactly
+	 */
+	private CountEstimate firstRowsCount(List<String> ids, int sampleSize, Long tableRows) {
+		List<List<Object>> sample = idRows(ids, false, sampleSize + 1);
+		if (sample.size() <= sampleSize) {
+			return CountEstimate.exact(count());
+		}
+		Set<List<Object>> inSample = new HashSet<>(sample.subList(0, sampleSize));
+		// matches in the sample come before those after it in the same order
+		long matched = idRows(ids, true, sampleSize).stream().filter(inSample::contains).count();
+		long total = tableRows != null && tableRows > sampleSize ? tableRows : rangeCount(ids.get(0), null, false);
+		return CountEstimate.estimated(Math.round((double) matched / sampleSize * Math.max(total, sampleSize + 1)), -1);
+	}
+
+	/**
+	 * @return the largest distance of the observed proportion from the bounds of its 95% Wilson score
+	 * interval, which unlike the normal approximation is not 0 when none or all of the sample match
+	 */
+	static double wilsonError(long matched, long sampled) {
+		double z = 1.96;
+		double n = sampled;
+		double p = matched / n;
+		double denominator = 1 + z * z / n;
+		double center = (p + z * z / (2 * n)) / denominator;
+		double halfWidth = z * Math.sqrt(p * (1 - p) / n + z * z / (4 * n * n)) / denominator;
+		return Math.max(Math.abs(center + halfWidth - p), Math.abs(p - (center - halfWidth)));
+	}
+
+	private static Object ofType(long value, Class type) {
+		if (type == Integer.class) {
+			return (int) value;
+		} else if (type == Short.class) {
+			return (short) value;
+		} else if (type == Byte.class) {
+			return (byte) value;
+		} else if (type == BigInteger.class) {
+			return BigInteger.valueOf(value);
+		}
+		return value;
+	}
+
+	/**
+	 * @param ranges the lowest and highest id of each range of the sample, null for all rows
+	 */
+	private long rangeCount(String id, List<Object[]> ranges, boolean filtered) {
+		Map<String, Join> joins = new HashMap<>();
+		Parameters parameters = new Parameters(Collections.emptyList());
 
 		CriteriaQuery<Long> countQ = build.createQuery(Long.class);
-		Root<E> countRoot = countQ.from(this.entityClass);
-		EntityType<E> countType = countRoot.getModel();
-		Type idType = countType.getIdType();
-
-		if ((countType.hasSingleIdAttribute() && Type.PersistenceType.BASIC.equals(idType.getPersistenceType())) ||
-				!needsCountDistinctWorkaround()) {
-			// types with a single basic id or databases that can count distinct multiple columns
-			prepareQuery(countQ, countRoot, joins);
-			countQ.select(build.countDistinct(countRoot));
-			return em.createQuery(countQ).getSingleResult();
-		} else {
-			final Set idAttributes;
-			if (idType == null || Type.PersistenceType.BASIC.equals(idType.getPersistenceType())) {
-				idAttributes = countType.getSingularAttributes().stream().filter(SingularAttribute::isId).collect(Collectors.toSet());
-			} else {
-				idAttributes = countRoot.getModel().getIdClassAttributes();
+		Root<E> countRoot = countQ.from(entityClass);
+		if (filtered) {
+			buildPredicate(countQ, countRoot, joins, parameters);
+		}
+		Path idPath = getPath(id, countRoot, joins);
+		if (ranges != null) {
+			List<Predicate> inRanges = new ArrayList<>();
+			for (Object[] range : ranges) {
+				inRanges.add(build.between(idPath, extraParameter(range[0], parameters), extraParameter(range[1], parameters)));
 			}
-			Iterator<SingularAttribute<? super E, ?>> pkFields = idAttributes.iterator();
-			SingularAttribute first = pkFields.next();
+			Predicate inSample = build.or(inRanges.toArray(new Predicate[0]));
+			countQ.where(countQ.getRestriction() == null ? inSample : build.and(countQ.getRestriction(), inSample));
+		}
+		countQ.select(build.count(idPath));
+		return bind(em.createQuery(countQ), parameters).getSingleResult();
+	}
+
+	private ParameterExpression extraParameter(Object value, Parameters parameters) {
+		ParameterExpression parameter = build.parameter(value.getClass());
+		parameters.expressions.add(parameter);
+		parameters.values.add(value);
+		return parameter;
+	}
+
+	/**
+	 * @return the ids of the first rows in id order, each as a list of its fields
+	 */
+	private List<List<Object>> idRows(List<String> ids, boolean filtered, int max) {
+		Map<String, Join> joins = new HashMap<>();
+		Parameters parameters = new Parameters(Collections.emptyList());
+
+		CriteriaQuery<Tuple> idQ = build.createTupleQuery();
+		Root<E> idRoot = idQ.from(entityClass);
+		if (filtered) {
+			buildPredicate(idQ, idRoot, joins, parameters);
+		}
+		List<Selection<?>> selections = new ArrayList<>();
+		List<Order> order = new ArrayList<>();
+		for (String id : ids) {
+			Path idPath = getPath(id, idRoot, joins);
+			selections.add(idPath);
+			order.add(build.asc(idPath));
+		}
+		idQ.multiselect(selections).orderBy(order);
+		return bind(em.createQuery(idQ), parameters).setMaxResults(max).getResultList().stream()
+				.map(row -> Arrays.asList(row.toArray())).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the number of rows of the entity's table according to the database statistics, null if unknown
+	 */
+	private Long rowEstimate() {
+		String query = DialectCapabilities.forFactory(em.getEntityManagerFactory()).getRowEstimateQuery();
+		if (query == null) {
+			return null;
+		}
+		List<?> rows = em.createNativeQuery(query).setParameter(1, tableName()).getResultList();
+		if (rows.isEmpty() || !(rows.get(0) instanceof Number) || ((Number) rows.get(0)).longValue() < 0) {
+			return null;
+		}
+		return ((Number) rows.get(0)).longValue();
+	}
 
-			List<Expression<?>> groupBys = new ArrayList<>();
-			while (pkFields.hasNext()) {
-				groupBys.add(countRoot.get(pkFields.next().getName()));
+	/**
+	 * @return the table of the entity as the provider names it, after its naming strategy and qualified with
+	 * the schema if one is mapped, otherwise as annotated
+	 */
+	private String tableName() {
+		Object name = null;
+		try {
+			String provider = em.getDelegate().getClass().getName();
+			if (provider.startsWith("org.hibernate.")) {
+				Object factory = em.getEntityManagerFactory().unwrap(Class.forName("org.hibernate.engine.spi.SessionFactoryImplementor"));
+				Object metamodel = factory.getClass().getMethod("getMetamodel").invoke(factory);
+				Object persister = metamodel.getClass().getMethod("entityPersister", Class.class).invoke(metamodel, entityClass);
+				name = persister.getClass().getMethod("getTableName").invoke(persister);
+			} else if (provider.startsWith("org.eclipse.persistence.")) {
+				Object session = em.unwrap(Class.forName("org.eclipse.persistence.sessions.Session"));
+				Object descriptor = session.getClass().getMethod("getDescriptor", Class.class).invoke(session, entityClass);
+				Object table = descriptor.getClass().getMethod("getDefaultTable").invoke(descriptor);
+				name = table.getClass().getMethod("getQualifiedName").invoke(table);
 			}
+		} catch (ReflectiveOperationException | PersistenceException e) {
+			// another version of the provider, or one loaded by another class loader
+			name = null;
+		}
+		if (name != null) {
+			return name.toString().replaceAll("[\"`\\[\\]]", "");
+		}
+		for (Class<?> type = entityClass; type != null; type = type.getSuperclass()) {
+			Table table = type.getAnnotation(Table.class);
+			if (table != null && !table.name().isEmpty()) {
+				String tableName = table.name().replaceAll("[\"`]", "");
+				return table.schema().isEmpty() ? tableName : table.schema().replaceAll("[\"`]", "") + "." + tableName;
+			}
+		}
+		return em.getMetamodel().entity(entityClass).getName();
+	}
+
+	private CriteriaQuery<Object> idCriteria(Parameters parameters) {
+		Map<String, Join> joins = new HashMap<>();
+
+		CriteriaQuery<Object> idQ = build.createQuery(Object.class);
+		Root<E> idRoot = idQ.from(this.entityClass);
+		buildPredicate(idQ, idRoot, joins, parameters);
+		idQ.select(getPath(idFields().get(0), idRoot, joins));
+		return idQ;
+	}
+
+	private CriteriaQuery<Long> countCriteria(Parameters parameters) {
+		Map<String, Join> joins = new HashMap<>();
+
+		CriteriaQuery<Long> countQ = build.createQuery(Long.class);
+		Root<E> countRoot = countQ.from(this.entityClass);
+		buildPredicate(countQ, countRoot, joins, parameters);
+		countQ.select(build.count(getPath(idFields().get(0), countRoot, joins)));
+		return countQ;
+	}
 
-			prepareQuery(countQ, countRoot, joins);
+	/**
+	 * The parameters of a query being built and the clause each value came from
+	 */
+	private static final class Parameters {
+		final List<ParameterExpression> expressions = new ArrayList<>();
+		final List<Object> values = new ArrayList<>();
+		final List<Binding> bindings = new ArrayList<>();
+		final List<Object> extraValues;
+		final Map<FilterExpression.SimpleClause, Integer> clauses = new IdentityHashMap<>();
+		boolean cacheable = true;
+		/** values of an <code>in</code> list too long to bind are written into the statement */
+		boolean inline;
 
-			countQ.groupBy(groupBys);
+		Parameters(List<Object> extraValues) {
+			this.extraValues = extraValues;
+		}
 
-			countQ.select(build.sum(build.countDistinct(countRoot.get(first.getName())))).distinct(false);
+		/**
+		 * Numbers the simple clauses in the order of the filter, which need not be the order they are built in
+		 */
+		void number(FilterExpression.Clause clause) {
+			if (clause instanceof FilterExpression.CompoundClause) {
+				number(((FilterExpression.CompoundClause) clause).left);
+				number(((FilterExpression.CompoundClause) clause).right);
+			} else if (clause instanceof FilterExpression.SimpleClause) {
+				clauses.put((FilterExpression.SimpleClause) clause, clauses.size());
+			}
+		}
 
-			List<Long> counts = em.createQuery(countQ).getResultList();
+		int indexOf(FilterExpression.SimpleClause clause) {
+			return clauses.get(clause);
+		}
 
-			return counts.get(0);
+		/**
+		 * Binds one of the values given to {@link #createQuery}, converted to the type of the property
+		 */
+		Expression extra(int index, Class propertyType, String field, CriteriaBuilder build) {
+			Binding source = new Binding(-1, index, propertyType, null, field);
+			Object value = KeysetToken.convert(extraValues.get(index), propertyType);
+			ParameterExpression parameter = build.parameter(wrap(propertyType));
+			expressions.add(parameter);
+			values.add(value);
+			bindings.add(source);
+			return parameter;
 		}
 	}
 
+	/**
+	 * A <code>ge</code> and a <code>le</code> clause on the same property, built as one <code>between</code>
+	 */
+	private static final class RangeClause implements FilterExpression.Clause {
+		final FilterExpression.SimpleClause lower;
+		final FilterExpression.SimpleClause upper;
 
-	private boolean needsCountDistinctWorkaround() {
-		//take from current EntityManager current DB Session
-		boolean override = Boolean.getBoolean("com.github.gdjennings.elrest.no_countdistinct");
-		if (override) {
-			return true;
+		RangeClause(FilterExpression.SimpleClause lower, FilterExpression.SimpleClause upper) {
+			this.lower = lower;
+			this.upper = upper;
 		}
+	}
 
-		EntityManagerFactory emf = em.getEntityManagerFactory();
-		Map<String, Object> emfProperties = emf.getProperties();
+	/**
+	 * Where a parameter value comes from: the n-th simple clause of the filter and, for in lists, the element,
+	 * or the part of the clause's value that was bound
+	 */
+	private static final class Binding {
+		enum Part {
+			VALUE, UPPER_VALUE, PREFIX, PREFIX_END
+		}
 
-		String driverClass = (String)emfProperties.get("javax.persistence.jdbc.driver");
-		return "oracle.jdbc.OracleDriver".equals(driverClass);
+		final int clause;
+		final int element;
+		final Class propertyType;
+		final FilterExpression.ComparisonOperator operator;
+		final String identifier;
+		final Part part;
+
+		Binding(int clause, int element, Class propertyType, FilterExpression.ComparisonOperator operator, String identifier) {
+			this(clause, element, propertyType, operator, identifier, Part.VALUE);
+		}
+
+		private Binding(int clause, int element, Class propertyType, FilterExpression.ComparisonOperator operator, String identifier, Part part) {
+			this.clause = clause;
+			this.element = element;
+			this.propertyType = propertyType;
+			this.operator = operator;
+			this.identifier = identifier;
+			this.part = part;
+		}
+
+		Binding element(int element) {
+			return new Binding(clause, element, propertyType, operator, identifier, part);
+		}
+
+		Binding part(Part part) {
+			return new Binding(clause, element, propertyType, operator, identifier, part);
+		}
+
+		boolean isBindable(Object value) {
+			return value != null && wrap(propertyType).isInstance(value);
+		}
+
+		Object valueOf(List<FilterExpression.SimpleClause> clauses, List<Object> extraValues) {
+			if (clause < 0) {
+				return KeysetToken.convert(extraValues.get(element), propertyType);
+			}
+			String value = clauses.get(clause).value;
+			switch (part) {
+				case UPPER_VALUE:
+					return convertValue(clauses.get(clause).upperValue, propertyType, operator, identifier);
+				case PREFIX:
+					return likePrefix(value);
+				case PREFIX_END:
+					String prefix = likePrefix(value);
+					return prefix != null ? prefixEnd(prefix) : null;
+				default:
+					break;
+			}
+			if (element < 0) {
+				return convertValue(value, propertyType, operator, identifier);
+			}
+			// elements past the end of the list pad it with its last value
+			String[] elements = value.split(",");
+			return convertInValue(elements[Math.min(element, elements.length - 1)], propertyType);
+		}
+	}
+
+	/**
+	 * A built criteria query with the parameters to bind for each execution
+	 */
+	static final class QueryTemplate {
+		final CriteriaQuery<?> query;
+		final List<ParameterExpression> parameters;
+		final List<Binding> bindings;
+
+		private QueryTemplate(CriteriaQuery<?> query, Parameters parameters) {
+			this.query = query;
+			this.parameters = parameters.expressions;
+			this.bindings = parameters.bindings;
+		}
+
+		/**
+		 * @return the parameter values for the clauses of a filter of the same shape, null if a value cannot be
+		 * bound the way the template was built
+		 */
+		private List<Object> valuesOf(List<FilterExpression.SimpleClause> clauses, List<Object> extraValues) {
+			List<Object> values = new ArrayList<>(bindings.size());
+			for (Binding binding : bindings) {
+				Object value = binding.valueOf(clauses, extraValues);
+				if (!binding.isBindable(value)) {
+					return null;
+				}
+				values.add(value);
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Reads a query a page at a time for providers without cursors
+	 */
+	private static final class PagedIterator<T> implements Iterator<T> {
+		private final TypedQuery<T> query;
+		private final int pageSize;
+		private Iterator<T> page = Collections.emptyIterator();
+		private int read;
+		private boolean last;
+
+		PagedIterator(TypedQuery<T> query, int pageSize) {
+			this.query = query;
+			this.pageSize = pageSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!page.hasNext() && !last) {
+				List<T> results = query.setFirstResult(read).setMaxResults(pageSize).getResultList();
+				read += results.size();
+				last = results.size() < pageSize;
+				page = results.iterator();
+			}
+			return page.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
 	}
 
+	/**
+	 * Detaches the entities returned so far each time a batch is complete and the next entity is read
+	 */
+	private static final class DetachingIterator<T> implements Iterator<T> {
+		private final EntityManager em;
+		private final Iterator<T> results;
+		private final List<T> batch;
+		private final int batchSize;
+
+		DetachingIterator(EntityManager em, Iterator<T> results, int batchSize) {
+			this.em = em;
+			this.results = results;
+			this.batchSize = batchSize;
+			this.batch = new ArrayList<>(batchSize);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (results.hasNext()) {
+				return true;
+			}
+			detach();
+			return false;
+		}
+
+		@Override
+		public T next() {
+			if (batch.size() >= batchSize) {
+				detach();
+			}
+			T next = results.next();
+			batch.add(next);
+			return next;
+		}
+
+		private void detach() {
+			for (T entity : batch) {
+				if (em.contains(entity)) {
+					em.detach(entity);
+				}
+			}
+			batch.clear();
+		}
+	}
 }
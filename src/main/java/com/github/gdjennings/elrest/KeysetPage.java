@@ -0,0 +1,38 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.util.List;
+
+/**
+ * A page of results fetched with keyset (seek) paging, see
+ * {@link JpaELFilterImpl#getResultPage(Class, int, String)}.
+ */
+public final class KeysetPage<T> {
+
+	private final List<T> results;
+	private final String continuation;
+
+	KeysetPage(List<T> results, String continuation) {
+		this.results = results;
+		this.continuation = continuation;
+	}
+
+	public List<T> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return the opaque token to pass for the next page, null if this is the last page
+	 */
+	public String getContinuation() {
+		return continuation;
+	}
+
+	public boolean hasNext() {
+		return continuation != null;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Continuation tokens of keyset paging: the key values of the last row of a page as text, prefixed with a
+ * fingerprint of the filter and ordering they belong to, in URL safe Base64. Values are written as plain
+ * strings (dates as epoch millis, timestamps with their nanos) and converted back to the type of the
+ * property they are compared with, so a token never carries serialized objects.
+ */
+final class KeysetToken {
+
+	private static final char SEPARATOR = ',';
+	private static final char ESCAPE = '\\';
+	private static final String NULL = "~";
+
+	private KeysetToken() {
+	}
+
+	static String encode(String fingerprint, List<Object> values) {
+		StringBuilder text = new StringBuilder(fingerprint);
+		for (Object value : values) {
+			text.append(SEPARATOR);
+			if (value == null) {
+				text.append(NULL);
+			} else {
+				escape(toText(value), text);
+			}
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the values as text, null for null values
+	 * @throws IllegalArgumentException if the token was not created for the same fingerprint and number of keys
+	 */
+	static List<Object> decode(String token, String fingerprint, int keys) {
+		String text;
+		try {
+			text = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid continuation token", e);
+		}
+
+		List<String> parts = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == ESCAPE) {
+				i++;
+			} else if (c == SEPARATOR) {
+				parts.add(text.substring(start, i));
+				start = i + 1;
+			}
+		}
+		parts.add(text.substring(start));
+
+		if (parts.size() != keys + 1 || !fingerprint.equals(parts.get(0))) {
+			throw new IllegalArgumentException("Invalid continuation token for this filter and ordering");
+		}
+		List<Object> values = new ArrayList<>(keys);
+		for (String part : parts.subList(1, parts.size())) {
+			values.add(NULL.equals(part) ? null : unescape(part));
+		}
+		return values;
+	}
+
+	/**
+	 * @return the text of a token value converted to the type of a property
+	 */
+	static Object convert(Object text, Class<?> type) {
+		String value = (String) text;
+		try {
+			if (type == String.class) {
+				return value;
+			} else if (type.isEnum()) {
+				return Enum.valueOf((Class) type, value);
+			} else if (type == Boolean.class || type == boolean.class) {
+				return Boolean.valueOf(value);
+			} else if (type == Character.class || type == char.class) {
+				return value.charAt(0);
+			} else if (Date.class.isAssignableFrom(type)) {
+				return toDate(value, type);
+			} else if (Calendar.class.isAssignableFrom(type)) {
+				Calendar calendar = Calendar.getInstance();
+				calendar.setTimeInMillis(Long.parseLong(value));
+				return calendar;
+			} else if (type == UUID.class) {
+				return UUID.fromString(value);
+			} else if (Number.class.isAssignableFrom(type) || type.isPrimitive()) {
+				return JpaELFilterImpl.toNumber(new BigDecimal(value), type);
+			}
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid continuation token value " + value + " for " + type.getName(), e);
+		}
+		throw new IllegalArgumentException("Keyset paging is not supported for properties of type " + type.getName());
+	}
+
+	private static String toText(Object value) {
+		if (value instanceof Timestamp) {
+			Timestamp timestamp = (Timestamp) value;
+			return timestamp.getTime() + "." + timestamp.getNanos();
+		} else if (value instanceof Date) {
+			return String.valueOf(((Date) value).getTime());
+		} else if (value instanceof Calendar) {
+			return String.valueOf(((Calendar) value).getTimeInMillis());
+		} else if (value instanceof Enum) {
+			return ((Enum) value).name();
+		} else if (value instanceof BigDecimal) {
+			return ((BigDecimal) value).toPlainString();
+		}
+		return value.toString();
+	}
+
+	private static Object toDate(String value, Class<?> type) {
+		int dot = value.indexOf('.');
+		long millis = Long.parseLong(dot < 0 ? value : value.substring(0, dot));
+		if (dot >= 0 && type.isAssignableFrom(Timestamp.class)) {
+			// keep the sub-millisecond part or rows within the same millisecond would be skipped or repeated
+			Timestamp timestamp = new Timestamp(millis);
+			timestamp.setNanos(Integer.parseInt(value.substring(dot + 1)));
+			return timestamp;
+		} else if (type == java.sql.Date.class) {
+			return new java.sql.Date(millis);
+		} else if (type == java.sql.Time.class) {
+			return new java.sql.Time(millis);
+		}
+		return new Date(millis);
+	}
+
+	private static void escape(String value, StringBuilder text) {
+		if (NULL.equals(value)) {
+			text.append(ESCAPE);
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == SEPARATOR || c == ESCAPE) {
+				text.append(ESCAPE);
+			}
+			text.append(c);
+		}
+	}
+
+	private static String unescape(String part) {
+		StringBuilder value = new StringBuilder(part.length());
+		for (int i = 0; i < part.length(); i++) {
+			char c = part.charAt(i);
+			if (c == ESCAPE && i + 1 < part.length()) {
+				c = part.charAt(++i);
+			}
+			value.append(c);
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A like pattern ("%" matches any sequence, everything else is literal) compiled once into a string
+ * predicate. The common <code>abc</code>, <code>abc%</code>, <code>%abc</code> and <code>%abc%</code>
+ * shapes are plain string comparisons; anything else becomes a {@link Pattern} with the literal parts
+ * quoted.
+ */
+final class LikePattern {
+
+	private LikePattern() {
+	}
+
+	static Predicate<String> compile(String pattern) {
+		return compile(pattern, null);
+	}
+
+	/**
+	 * @param changeCase "lower" or "upper" to match the lower/upper cased value, like the
+	 *                   lower(x) and upper(x) functions, or null to match the value as is
+	 */
+	static Predicate<String> compile(String pattern, String changeCase) {
+		boolean ignoreCase = changeCase != null;
+		if (ignoreCase) {
+			String folded = "upper".equals(changeCase) ? pattern.toUpperCase(Locale.ROOT) : pattern.toLowerCase(Locale.ROOT);
+			if (!folded.equals(pattern)) {
+				// e.g. lower(name) like "Abc%" can never match
+				return s -> false;
+			}
+		}
+
+		int first = pattern.indexOf('%');
+		if (first < 0) {
+			return ignoreCase ? s -> s.equalsIgnoreCase(pattern) : pattern::equals;
+		}
+
+		if (pattern.chars().allMatch(c -> c == '%')) {
+			return s -> true;
+		}
+
+		boolean leading = first == 0;
+		boolean trailing = pattern.endsWith("%");
+		String literal = pattern.substring(leading ? 1 : 0, trailing ? pattern.length() - 1 : pattern.length());
+		if (literal.indexOf('%') < 0) {
+			int length = literal.length();
+			if (leading && trailing) {
+				return ignoreCase ? s -> containsIgnoreCase(s, literal) : s -> s.contains(literal);
+			} else if (trailing) {
+				return ignoreCase ? s -> s.regionMatches(true, 0, literal, 0, length) : s -> s.startsWith(literal);
+			} else if (leading) {
+				return ignoreCase ? s -> s.length() >= length && s.regionMatches(true, s.length() - length, literal, 0, length) : s -> s.endsWith(literal);
+			}
+		}
+
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int i = first; i >= 0; i = pattern.indexOf('%', start)) {
+			if (i > start) {
+				regex.append(Pattern.quote(pattern.substring(start, i)));
+			}
+			regex.append(".*");
+			start = i + 1;
+		}
+		if (start < pattern.length()) {
+			regex.append(Pattern.quote(pattern.substring(start)));
+		}
+		Pattern compiled = Pattern.compile(regex.toString(), ignoreCase ? Pattern.DOTALL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : Pattern.DOTALL);
+		return s -> compiled.matcher(s).matches();
+	}
+
+	private static boolean containsIgnoreCase(String s, String literal) {
+		int length = literal.length();
+		for (int i = 0, last = s.length() - length; i <= last; i++) {
+			if (s.regionMatches(true, i, literal, 0, length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Read-only set of primitive longs used for in/not in lists on integral and date properties.
+ * Small lists are kept as a sorted array and searched with a binary search, larger ones in an open
+ * addressing hash table, so membership never boxes.
+ */
+final class LongHashSet implements LongPredicate {
+
+	private static final int SMALL = 8;
+
+	private final long[] sorted;
+	private final long[] table;
+	private final boolean containsZero;
+	private final int mask;
+	private final int size;
+
+	private LongHashSet(long[] values) {
+		long[] distinct = Arrays.stream(values).sorted().distinct().toArray();
+		this.size = distinct.length;
+		if (distinct.length <= SMALL) {
+			this.sorted = distinct;
+			this.table = null;
+			this.containsZero = false;
+			this.mask = 0;
+		} else {
+			// zero marks an empty slot so it is tracked separately
+			int capacity = Integer.highestOneBit(distinct.length * 2 - 1) << 1;
+			long[] slots = new long[capacity];
+			boolean zero = false;
+			for (long value : distinct) {
+				if (value == 0) {
+					zero = true;
+					continue;
+				}
+				int i = index(value, capacity - 1);
+				while (slots[i] != 0) {
+					i = (i + 1) & (capacity - 1);
+				}
+				slots[i] = value;
+			}
+			this.sorted = null;
+			this.table = slots;
+			this.containsZero = zero;
+			this.mask = capacity - 1;
+		}
+	}
+
+	static LongHashSet of(long... values) {
+		return new LongHashSet(values);
+	}
+
+	int size() {
+		return size;
+	}
+
+	@Override
+	public boolean test(long value) {
+		if (table == null) {
+			return Arrays.binarySearch(sorted, value) >= 0;
+		}
+		if (value == 0) {
+			return containsZero;
+		}
+		for (int i = index(value, mask); ; i = (i + 1) & mask) {
+			long slot = table[i];
+			if (slot == value) {
+				return true;
+			} else if (slot == 0) {
+				return false;
+			}
+		}
+	}
+
+	private static int index(long value, int mask) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
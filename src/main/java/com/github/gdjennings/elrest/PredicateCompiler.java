@@ -0,0 +1,340 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import javax.xml.bind.DatatypeConverter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+
+/**
+ * Compiles a {@link FilterExpression} into a tree of {@link Predicate}s for a given element class.
+ * <p>
+ * Property paths are resolved and literal values are converted to the property type once, at compile
+ * time, so evaluating the result does no parsing or string building. The comparison rules follow the
+ * javax.el coercions that {@link ELFilterImpl} used to rely on: numbers compare numerically, dates and
+ * calendars compare by their millisecond value (literals may be millis or ISO8601), enums by constant
+ * and everything else by its string form.
+ */
+class PredicateCompiler {
+
+	private static final Predicate<Object> ALWAYS = e -> true;
+
+	private enum Kind {
+		INTEGRAL, FLOATING, DECIMAL, TIME, BOOLEAN, ENUM, STRING, DYNAMIC
+	}
+
+	static Predicate<Object> compile(FilterExpression expression, Class<?> elementClass) {
+		if (expression == null || expression.getClause() == null) {
+			return ALWAYS;
+		}
+		return compile(expression.getClause(), elementClass);
+	}
+
+	static Predicate<Object> compile(FilterExpression.Clause clause, Class<?> elementClass) {
+		if (clause instanceof FilterExpression.CompoundClause) {
+			FilterExpression.CompoundClause compound = (FilterExpression.CompoundClause) clause;
+			Predicate<Object> left = compile(compound.left, elementClass);
+			Predicate<Object> right = compile(compound.right, elementClass);
+			return compound.operator == FilterExpression.LogicalOperator.AND ? left.and(right) : left.or(right);
+		} else if (clause instanceof FilterExpression.SimpleClause) {
+			return compileSimple((FilterExpression.SimpleClause) clause, elementClass);
+		} else {
+			throw new IllegalArgumentException("Unsupported clause " + clause);
+		}
+	}
+
+	static Predicate<Object> compileSimple(FilterExpression.SimpleClause clause, Class<?> elementClass) {
+		if (clause.operator == FilterExpression.ComparisonOperator.BETWEEN) {
+			return compileSimple(clause.lowerBound(), elementClass).and(compileSimple(clause.upperBound(), elementClass));
+		}
+
+		String identifier = clause.identifier;
+		String changeCase = null;
+		Matcher caseMatcher = FilterExpression.CASE_PATTERN.matcher(identifier);
+		if (caseMatcher.matches()) {
+			changeCase = caseMatcher.group(1);
+			identifier = caseMatcher.group(2);
+		}
+
+		PropertyPath path = PropertyAccessors.path(elementClass, identifier);
+		FilterExpression.ComparisonOperator op = clause.operator.canonical();
+
+		if (changeCase != null && (op == FilterExpression.ComparisonOperator.LIKE || op == FilterExpression.ComparisonOperator.NOT_LIKE)
+				&& !"null".equals(clause.value)) {
+			// match case insensitively rather than folding every value
+			Predicate<String> like = LikePattern.compile(clause.value, changeCase);
+			boolean expected = op == FilterExpression.ComparisonOperator.LIKE;
+			return entity -> {
+				Object value = path.get(entity);
+				return value == null ? !expected : like.test(value.toString()) == expected;
+			};
+		} else if (changeCase != null) {
+			Predicate<Object> test = compileComparison(String.class, op, clause.value, identifier);
+			boolean upper = "upper".equals(changeCase);
+			return entity -> {
+				Object value = path.get(entity);
+				if (value != null) {
+					value = upper ? value.toString().toUpperCase(Locale.ROOT) : value.toString().toLowerCase(Locale.ROOT);
+				}
+				return test.test(value);
+			};
+		}
+
+		Predicate<Object> test = compileComparison(path.getType(), op, clause.value, identifier);
+		return entity -> test.test(path.get(entity));
+	}
+
+	/**
+	 * @return a predicate over property values, including null
+	 */
+	static Predicate<Object> compileComparison(Class<?> type, FilterExpression.ComparisonOperator op, String literal, String identifier) {
+		if ("null".equals(literal)) {
+			switch (op) {
+				case NE: case NOT_IN: case NOT_LIKE:
+					return v -> v != null;
+				case EQ: case IN: case LIKE:
+					return v -> v == null;
+				default:
+					return v -> false;
+			}
+		}
+
+		Predicate<Object> test = compileValueComparison(kindOf(type), type, op, literal, identifier);
+		boolean nullMatches = op == FilterExpression.ComparisonOperator.NE
+				|| op == FilterExpression.ComparisonOperator.NOT_IN
+				|| op == FilterExpression.ComparisonOperator.NOT_LIKE;
+		return v -> v == null ? nullMatches : test.test(v);
+	}
+
+	private static Predicate<Object> compileValueComparison(Kind kind, Class<?> type, FilterExpression.ComparisonOperator op, String literal, String identifier) {
+		if (kind == Kind.DYNAMIC) {
+			Map<Class<?>, Predicate<Object>> byType = new ConcurrentHashMap<>();
+			return v -> {
+				Predicate<Object> test = byType.get(v.getClass());
+				if (test == null) {
+					test = byType.computeIfAbsent(v.getClass(), t -> {
+						// a runtime class that is none of the kinds, e.g. a plain Object, compares as a string
+						Kind runtimeKind = kindOf(t);
+						return compileValueComparison(runtimeKind == Kind.DYNAMIC ? Kind.STRING : runtimeKind, t, op, literal, identifier);
+					});
+				}
+				return test.test(v);
+			};
+		}
+
+		switch (op) {
+			case LIKE: {
+				Predicate<String> like = LikePattern.compile(literal);
+				return v -> like.test(v.toString());
+			}
+			case NOT_LIKE: {
+				Predicate<String> like = LikePattern.compile(literal);
+				return v -> !like.test(v.toString());
+			}
+			case IN: case NOT_IN: {
+				boolean in = op == FilterExpression.ComparisonOperator.IN;
+				if (kind == Kind.INTEGRAL || kind == Kind.TIME) {
+					LongHashSet values = parseLongs(literal, kind == Kind.TIME);
+					ToLongFunction<Object> key = kind == Kind.TIME ? PredicateCompiler::toMillis : v -> ((Number) v).longValue();
+					return in ? v -> values.test(key.applyAsLong(v)) : v -> !values.test(key.applyAsLong(v));
+				}
+
+				Function<Object, Object> key = keyOf(kind);
+				Set<Object> values = new HashSet<>();
+				for (String item : literal.split(",")) {
+					Object parsed = parseKey(kind, item.trim());
+					if (parsed != null) {
+						values.add(parsed);
+					}
+				}
+				return in ? v -> values.contains(key.apply(v)) : v -> !values.contains(key.apply(v));
+			}
+			default:
+				return ordering(op, comparator(kind, type, op, literal, identifier));
+		}
+	}
+
+	private static Predicate<Object> ordering(FilterExpression.ComparisonOperator op, ToIntFunction<Object> cmp) {
+		switch (op) {
+			case EQ:
+				return v -> cmp.applyAsInt(v) == 0;
+			case NE:
+				return v -> cmp.applyAsInt(v) != 0;
+			case LT:
+				return v -> cmp.applyAsInt(v) < 0;
+			case LE:
+				return v -> cmp.applyAsInt(v) <= 0;
+			case GT:
+				return v -> cmp.applyAsInt(v) > 0;
+			case GE:
+				return v -> cmp.applyAsInt(v) >= 0;
+			default:
+				throw new IllegalArgumentException("Unsupported operator " + op);
+		}
+	}
+
+	private static ToIntFunction<Object> comparator(Kind kind, Class<?> type, FilterExpression.ComparisonOperator op, String literal, String identifier) {
+		switch (kind) {
+			case INTEGRAL: {
+				long value;
+				try {
+					value = Long.parseLong(literal);
+				} catch (NumberFormatException e) {
+					return comparator(Kind.DECIMAL, type, op, literal, identifier);
+				}
+				return v -> Long.compare(((Number) v).longValue(), value);
+			}
+			case FLOATING: {
+				double value = parseDecimal(literal, identifier).doubleValue();
+				return v -> Double.compare(((Number) v).doubleValue(), value);
+			}
+			case DECIMAL: {
+				BigDecimal value = parseDecimal(literal, identifier);
+				return v -> toDecimal(v).compareTo(value);
+			}
+			case TIME: {
+				long value = parseMillis(literal);
+				return v -> Long.compare(toMillis(v), value);
+			}
+			case BOOLEAN: {
+				boolean value = Boolean.parseBoolean(literal);
+				return v -> Boolean.compare((Boolean) v, value);
+			}
+			case ENUM: {
+				Enum value = findConstant(type, literal);
+				if (value == null) {
+					if (op == FilterExpression.ComparisonOperator.EQ || op == FilterExpression.ComparisonOperator.NE) {
+						// no constant of that name so nothing is equal to it
+						return v -> 1;
+					}
+					throw new IllegalArgumentException("Invalid value for enum property: " + identifier + " " + literal);
+				}
+				return v -> Integer.compare(((Enum) v).ordinal(), value.ordinal());
+			}
+			default:
+				return v -> v.toString().compareTo(literal);
+		}
+	}
+
+	private static Function<Object, Object> keyOf(Kind kind) {
+		switch (kind) {
+			case FLOATING:
+				return v -> ((Number) v).doubleValue();
+			case DECIMAL:
+				return v -> toDecimal(v).stripTrailingZeros();
+			case BOOLEAN:
+				return v -> v;
+			case ENUM:
+				return v -> ((Enum) v).name();
+			default:
+				return Object::toString;
+		}
+	}
+
+	/**
+	 * Parses a comma separated in list for an integral (or, with millis, a date) property. Values that the
+	 * property cannot hold are dropped since they can never match.
+	 */
+	static LongHashSet parseLongs(String literal, boolean millis) {
+		String[] items = literal.split(",");
+		long[] values = new long[items.length];
+		int count = 0;
+		for (String item : items) {
+			try {
+				values[count] = millis ? parseMillis(item.trim()) : new BigDecimal(item.trim()).longValueExact();
+				count++;
+			} catch (ArithmeticException | IllegalArgumentException e) {
+				// fractional, not a number or not a date
+			}
+		}
+		return LongHashSet.of(Arrays.copyOf(values, count));
+	}
+
+	private static Object parseKey(Kind kind, String literal) {
+		try {
+			switch (kind) {
+				case FLOATING:
+					return Double.parseDouble(literal);
+				case DECIMAL:
+					return new BigDecimal(literal).stripTrailingZeros();
+				case BOOLEAN:
+					return Boolean.parseBoolean(literal);
+				default:
+					return literal;
+			}
+		} catch (NumberFormatException e) {
+			// not a value the property can hold so it can never match
+			return null;
+		}
+	}
+
+	private static Kind kindOf(Class<?> type) {
+		if (type == long.class || type == int.class || type == short.class || type == byte.class
+				|| type == Long.class || type == Integer.class || type == Short.class || type == Byte.class) {
+			return Kind.INTEGRAL;
+		} else if (type == double.class || type == float.class || type == Double.class || type == Float.class) {
+			return Kind.FLOATING;
+		} else if (Number.class.isAssignableFrom(type) && type != Number.class) {
+			return Kind.DECIMAL;
+		} else if (Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)) {
+			return Kind.TIME;
+		} else if (type == boolean.class || type == Boolean.class) {
+			return Kind.BOOLEAN;
+		} else if (Enum.class.isAssignableFrom(type) && type != Enum.class) {
+			return Kind.ENUM;
+		} else if (type == Object.class || type == Number.class || type.isInterface() && !CharSequence.class.isAssignableFrom(type)) {
+			return Kind.DYNAMIC;
+		} else {
+			return Kind.STRING;
+		}
+	}
+
+	private static Enum findConstant(Class<?> type, String name) {
+		Class<?> enumType = type.isEnum() ? type : type.getSuperclass();
+		for (Object constant : enumType.getEnumConstants()) {
+			if (((Enum) constant).name().equals(name)) {
+				return (Enum) constant;
+			}
+		}
+		return null;
+	}
+
+	private static BigDecimal parseDecimal(String literal, String identifier) {
+		try {
+			return new BigDecimal(literal);
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException("Invalid value for numeric property: " + identifier + " caused by: " + e.getMessage());
+		}
+	}
+
+	private static BigDecimal toDecimal(Object value) {
+		return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+	}
+
+	static long parseMillis(String literal) {
+		try {
+			return Long.parseLong(literal);
+		} catch (NumberFormatException e) {
+			return DatatypeConverter.parseDateTime(literal).getTimeInMillis();
+		}
+	}
+
+	private static long toMillis(Object value) {
+		return value instanceof Calendar ? ((Calendar) value).getTimeInMillis() : ((Date) value).getTime();
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Generates filter predicates whose property reads are classes spun by {@link LambdaMetafactory}
+ * that call the getters directly, with primitive getters compared against constant primitives.
+ * The JIT can inline such predicates into the calling loop the same way as hand written lambdas.
+ * <p>
+ * Clauses that cannot be generated (case functions, map keys, properties only known at runtime,
+ * getters that are not public or not visible from this class loader) fall back to the
+ * {@link PredicateCompiler} nodes. Results are cached per element class in a bounded LRU map keyed by the
+ * filter with its operators in their canonical form, so e.g. <code>gte</code> and <code>ge</code> share one.
+ */
+class PredicateGenerator {
+
+	private static final int MAX_FILTERS_PER_CLASS = 256;
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final ClassValue<Map<String, Predicate<Object>>> GENERATED = new ClassValue<Map<String, Predicate<Object>>>() {
+		@Override
+		protected Map<String, Predicate<Object>> computeValue(Class<?> type) {
+			return new LinkedHashMap<String, Predicate<Object>>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Predicate<Object>> eldest) {
+					return size() > MAX_FILTERS_PER_CLASS;
+				}
+			};
+		}
+	};
+
+	static Predicate<Object> generate(FilterExpression expression, Class<?> elementClass) {
+		if (expression == null || expression.getClause() == null) {
+			return PredicateCompiler.compile(expression, elementClass);
+		}
+
+		Map<String, Predicate<Object>> generated = GENERATED.get(elementClass);
+		StringBuilder key = new StringBuilder();
+		appendKey(expression.getClause(), key);
+		Predicate<Object> predicate;
+		synchronized (generated) {
+			predicate = generated.get(key.toString());
+		}
+		if (predicate == null) {
+			predicate = generate(expression.getClause(), elementClass);
+			synchronized (generated) {
+				generated.put(key.toString(), predicate);
+			}
+		}
+		return predicate;
+	}
+
+	/**
+	 * The filter with canonical operators; values are prefixed by their length so no value can be taken for
+	 * the rest of the filter
+	 */
+	private static void appendKey(FilterExpression.Clause clause, StringBuilder key) {
+		if (clause instanceof FilterExpression.CompoundClause) {
+			FilterExpression.CompoundClause compound = (FilterExpression.CompoundClause) clause;
+			key.append('(');
+			appendKey(compound.left, key);
+			key.append(") ").append(compound.operator).append(" (");
+			appendKey(compound.right, key);
+			key.append(')');
+		} else if (clause instanceof FilterExpression.SimpleClause) {
+			FilterExpression.SimpleClause simple = (FilterExpression.SimpleClause) clause;
+			key.append(simple.identifier).append(' ').append(simple.operator.canonical());
+			appendValue(simple.value, key);
+			if (simple.operator == FilterExpression.ComparisonOperator.BETWEEN) {
+				appendValue(simple.upperValue, key);
+			}
+		} else {
+			key.append(clause);
+		}
+	}
+
+	private static void appendValue(String value, StringBuilder key) {
+		if (value == null) {
+			key.append(" -");
+		} else {
+			key.append(' ').append(value.length()).append(':').append(value);
+		}
+	}
+
+	private static Predicate<Object> generate(FilterExpression.Clause clause, Class<?> elementClass) {
+		if (clause instanceof FilterExpression.CompoundClause) {
+			FilterExpression.CompoundClause compound = (FilterExpression.CompoundClause) clause;
+			Predicate<Object> left = generate(compound.left, elementClass);
+			Predicate<Object> right = generate(compound.right, elementClass);
+			return compound.operator == FilterExpression.LogicalOperator.AND ? left.and(right) : left.or(right);
+		} else if (clause instanceof FilterExpression.SimpleClause && ((FilterExpression.SimpleClause) clause).operator == FilterExpression.ComparisonOperator.BETWEEN) {
+			FilterExpression.SimpleClause between = (FilterExpression.SimpleClause) clause;
+			return generate(between.lowerBound(), elementClass).and(generate(between.upperBound(), elementClass));
+		} else if (clause instanceof FilterExpression.SimpleClause) {
+			Predicate<Object> predicate = generateSimple((FilterExpression.SimpleClause) clause, elementClass);
+			return predicate != null ? predicate : PredicateCompiler.compileSimple((FilterExpression.SimpleClause) clause, elementClass);
+		} else {
+			return PredicateCompiler.compile(clause, elementClass);
+		}
+	}
+
+	private static Predicate<Object> generateSimple(FilterExpression.SimpleClause clause, Class<?> elementClass) {
+		if (FilterExpression.CASE_PATTERN.matcher(clause.identifier).matches()) {
+			return null;
+		}
+
+		Method[] getters = PropertyAccessors.path(elementClass, clause.identifier).getGetters();
+		if (getters == null) {
+			return null;
+		}
+		for (Method getter : getters) {
+			if (!isLinkable(getter)) {
+				return null;
+			}
+		}
+
+		try {
+			Function<Object, Object> owner = null;
+			for (int i = 0; i < getters.length - 1; i++) {
+				Function<Object, Object> step = spin(Function.class, "apply", MethodType.methodType(Object.class, Object.class), getters[i]);
+				owner = owner == null ? step : owner.andThen(v -> v == null ? null : step.apply(v));
+			}
+
+			Method leaf = getters[getters.length - 1];
+			FilterExpression.ComparisonOperator op = clause.operator.canonical();
+			Predicate<Object> test = generateLeaf(leaf, op, clause.value, clause.identifier);
+			if (owner == null) {
+				return test;
+			}
+
+			Function<Object, Object> ownerOf = owner;
+			boolean nullMatches = PredicateCompiler.compileComparison(leaf.getReturnType(), op, clause.value, clause.identifier).test(null);
+			return e -> {
+				Object o = ownerOf.apply(e);
+				return o == null ? nullMatches : test.test(o);
+			};
+		} catch (LambdaConversionException | ReflectiveOperationException | SecurityException e) {
+			return null;
+		}
+	}
+
+	private static Predicate<Object> generateLeaf(Method getter, FilterExpression.ComparisonOperator op, String literal, String identifier)
+			throws LambdaConversionException, IllegalAccessException {
+		Class<?> type = getter.getReturnType();
+		boolean ordering = op != FilterExpression.ComparisonOperator.IN && op != FilterExpression.ComparisonOperator.NOT_IN
+				&& op != FilterExpression.ComparisonOperator.LIKE && op != FilterExpression.ComparisonOperator.NOT_LIKE;
+
+		if (ordering && !"null".equals(literal)) {
+			if ((type == long.class || type == int.class || type == short.class || type == byte.class) && isLong(literal)) {
+				ToLongFunction<Object> f = spin(ToLongFunction.class, "applyAsLong", MethodType.methodType(long.class, Object.class), getter);
+				return longComparison(f, op, Long.parseLong(literal));
+			} else if ((type == double.class || type == float.class) && isDouble(literal)) {
+				ToDoubleFunction<Object> f = spin(ToDoubleFunction.class, "applyAsDouble", MethodType.methodType(double.class, Object.class), getter);
+				return doubleComparison(f, op, Double.parseDouble(literal));
+			} else if (type == boolean.class && (op == FilterExpression.ComparisonOperator.EQ || op == FilterExpression.ComparisonOperator.NE)) {
+				Predicate<Object> f = spin(Predicate.class, "test", MethodType.methodType(boolean.class, Object.class), getter);
+				boolean expected = Boolean.parseBoolean(literal) == (op == FilterExpression.ComparisonOperator.EQ);
+				return expected ? f : f.negate();
+			}
+		}
+
+		boolean in = op == FilterExpression.ComparisonOperator.IN;
+		if ((in || op == FilterExpression.ComparisonOperator.NOT_IN) && !"null".equals(literal)
+				&& (type == long.class || type == int.class || type == short.class || type == byte.class)) {
+			ToLongFunction<Object> f = spin(ToLongFunction.class, "applyAsLong", MethodType.methodType(long.class, Object.class), getter);
+			LongHashSet values = PredicateCompiler.parseLongs(literal, false);
+			return in ? e -> values.test(f.applyAsLong(e)) : e -> !values.test(f.applyAsLong(e));
+		}
+
+		Function<Object, Object> f = spin(Function.class, "apply", MethodType.methodType(Object.class, Object.class), getter);
+		Predicate<Object> test = PredicateCompiler.compileComparison(getter.getReturnType(), op, literal, identifier);
+		return e -> test.test(f.apply(e));
+	}
+
+	private static Predicate<Object> longComparison(ToLongFunction<Object> f, FilterExpression.ComparisonOperator op, long value) {
+		switch (op) {
+			case EQ:
+				return e -> f.applyAsLong(e) == value;
+			case NE:
+				return e -> f.applyAsLong(e) != value;
+			case LT:
+				return e -> f.applyAsLong(e) < value;
+			case LE:
+				return e -> f.applyAsLong(e) <= value;
+			case GT:
+				return e -> f.applyAsLong(e) > value;
+			case GE:
+				return e -> f.applyAsLong(e) >= value;
+			default:
+				throw new IllegalArgumentException("Unsupported operator " + op);
+		}
+	}
+
+	private static Predicate<Object> doubleComparison(ToDoubleFunction<Object> f, FilterExpression.ComparisonOperator op, double value) {
+		switch (op) {
+			case EQ:
+				return e -> f.applyAsDouble(e) == value;
+			case NE:
+				return e -> f.applyAsDouble(e) != value;
+			case LT:
+				return e -> f.applyAsDouble(e) < value;
+			case LE:
+				return e -> f.applyAsDouble(e) <= value;
+			case GT:
+				return e -> f.applyAsDouble(e) > value;
+			case GE:
+				return e -> f.applyAsDouble(e) >= value;
+			default:
+				throw new IllegalArgumentException("Unsupported operator " + op);
+		}
+	}
+
+	private static boolean isLong(String literal) {
+		try {
+			Long.parseLong(literal);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static boolean isDouble(String literal) {
+		try {
+			Double.parseDouble(literal);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <F> F spin(Class<? super F> functionalInterface, String name, MethodType erasedType, Method getter)
+			throws LambdaConversionException, IllegalAccessException {
+		MethodType instantiatedType = MethodType.methodType(erasedType.returnType(), getter.getDeclaringClass());
+		CallSite site = LambdaMetafactory.metafactory(LOOKUP, name, MethodType.methodType(functionalInterface),
+				erasedType, LOOKUP.unreflect(getter), instantiatedType);
+		try {
+			return (F) site.getTarget().invoke();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			// the factory of a non-capturing lambda takes no arguments and throws no checked exceptions
+			throw new UndeclaredThrowableException(t);
+		}
+	}
+
+	/**
+	 * Spun classes call the getter by name from this class loader so the getter must be public and
+	 * its class resolvable from here (not the case for entities in a child class loader).
+	 */
+	private static boolean isLinkable(Method getter) {
+		Class<?> owner = getter.getDeclaringClass();
+		if (!Modifier.isPublic(getter.getModifiers()) || !Modifier.isPublic(owner.getModifiers())) {
+			return false;
+		}
+		try {
+			return Class.forName(owner.getName(), false, PredicateGenerator.class.getClassLoader()) == owner;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global registry of {@link PropertyPath}s. A dotted path is introspected once per class and the
+ * resolved accessor chain is shared by filtering, ordering and any other code reading properties
+ * from in-memory objects.
+ */
+public final class PropertyAccessors {
+
+	private static final ClassValue<Map<String, PropertyPath>> PATHS = new ClassValue<Map<String, PropertyPath>>() {
+		@Override
+		protected Map<String, PropertyPath> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	private PropertyAccessors() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the path cannot be resolved on the type
+	 */
+	public static PropertyPath path(Class<?> type, String path) {
+		Map<String, PropertyPath> paths = PATHS.get(type);
+		PropertyPath resolved = paths.get(path);
+		if (resolved == null) {
+			resolved = paths.computeIfAbsent(path, p -> PropertyPath.resolve(type, p));
+		}
+		return resolved;
+	}
+
+	public static Object get(Object bean, String path) {
+		return path(bean.getClass(), path).get(bean);
+	}
+
+	/**
+	 * Comparator for orderBy fields in the same format as {@link ELFilter#orderBy(String...)}; a leading "-"
+	 * sorts the field descending. Null values sort first in ascending order.
+	 */
+	public static Comparator<Object> comparator(Class<?> type, String... orderByFields) {
+		Comparator<Object> comparator = null;
+		for (String field : orderByFields) {
+			boolean descending = field.startsWith("-");
+			PropertyPath path = path(type, descending ? field.substring(1) : field);
+			Comparator<Object> byField = Comparator.comparing(path::get, Comparator.nullsFirst(PropertyAccessors::compareValues));
+			if (descending) {
+				byField = byField.reversed();
+			}
+			comparator = comparator == null ? byField : comparator.thenComparing(byField);
+		}
+		return comparator == null ? (a, b) -> 0 : comparator;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareValues(Object a, Object b) {
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+}
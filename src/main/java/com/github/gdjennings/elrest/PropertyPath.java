@@ -0,0 +1,196 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dotted property path (e.g. <code>address.postCode</code>) resolved once against a class into a
+ * chain of {@link MethodHandle}s. Instances are immutable and safe to share between threads, use
+ * {@link PropertyAccessors#path(Class, String)} to obtain them.
+ * <p>
+ * Each step reads, in order of preference, the JavaBeans getter, an accessor method named like the
+ * property (records and similar value classes), a public field or, for {@link Map}s, the key.
+ * Steps whose declared type does not expose the property (Object, interfaces) are resolved against
+ * the runtime class of the value instead, once per class.
+ */
+public final class PropertyPath {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodType READER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private final String path;
+	private final Step[] steps;
+	private final Class<?> type;
+
+	private PropertyPath(String path, Step[] steps, Class<?> type) {
+		this.path = path;
+		this.steps = steps;
+		this.type = type;
+	}
+
+	static PropertyPath resolve(Class<?> rootType, String path) {
+		String[] names = path.split("\\.");
+		Step[] steps = new Step[names.length];
+		Class<?> owner = rootType;
+		for (int i = 0; i < names.length; i++) {
+			steps[i] = Step.resolve(owner, names[i]);
+			owner = steps[i].type;
+		}
+		return new PropertyPath(path, steps, owner);
+	}
+
+	/**
+	 * @return the declared type of the last step, Object if it can only be known at runtime
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * @return the value at the end of the path, null if the bean or any intermediate value is null
+	 */
+	public Object get(Object bean) {
+		Object value = bean;
+		for (Step step : steps) {
+			if (value == null) {
+				return null;
+			}
+			value = step.get(value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the getter of each step, null if any step is not a getter or only known at runtime
+	 */
+	Method[] getGetters() {
+		Method[] getters = new Method[steps.length];
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i].getter == null) {
+				return null;
+			}
+			getters[i] = steps[i].getter;
+		}
+		return getters;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	private static class Step {
+		final String name;
+		final Class<?> type;
+		final Method getter;
+		final MethodHandle reader;
+		final boolean mapKey;
+		final Map<Class<?>, Step> runtimeSteps;
+
+		private Step(String name, Class<?> type, Method getter, MethodHandle reader, boolean mapKey) {
+			this.name = name;
+			this.type = type;
+			this.getter = getter;
+			this.reader = reader == null ? null : reader.asType(READER_TYPE);
+			this.mapKey = mapKey;
+			this.runtimeSteps = reader == null && !mapKey ? new ConcurrentHashMap<>() : null;
+		}
+
+		static Step resolve(Class<?> owner, String name) {
+			if (Map.class.isAssignableFrom(owner)) {
+				return new Step(name, Object.class, null, null, true);
+			}
+			try {
+				Method getter = findGetter(owner, name);
+				if (getter != null) {
+					return new Step(name, getter.getReturnType(), getter, LOOKUP.unreflect(getter), false);
+				}
+				Field field = findField(owner, name);
+				if (field != null) {
+					return new Step(name, field.getType(), null, LOOKUP.unreflectGetter(field), false);
+				}
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Cannot access property " + name + " on " + owner.getName(), e);
+			}
+			if (owner == Object.class || owner.isInterface()) {
+				return new Step(name, Object.class, null, null, false);
+			}
+			throw new IllegalArgumentException("Unknown property " + name + " on " + owner.getName());
+		}
+
+		Object get(Object bean) {
+			if (reader != null) {
+				try {
+					return reader.invokeExact(bean);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new IllegalStateException("Cannot read property " + name + " of " + bean.getClass().getName(), t);
+				}
+			} else if (mapKey) {
+				return ((Map) bean).get(name);
+			} else {
+				Class<?> runtimeType = bean.getClass();
+				Step step = runtimeSteps.get(runtimeType);
+				if (step == null) {
+					step = runtimeSteps.computeIfAbsent(runtimeType, t -> resolve(t, name));
+				}
+				return step.get(bean);
+			}
+		}
+
+		private static Method findGetter(Class<?> owner, String name) {
+			try {
+				for (PropertyDescriptor pd : Introspector.getBeanInfo(owner).getPropertyDescriptors()) {
+					if (pd.getName().equals(name) && pd.getReadMethod() != null) {
+						return accessible(pd.getReadMethod());
+					}
+				}
+			} catch (IntrospectionException e) {
+				throw new IllegalArgumentException("Cannot introspect " + owner.getName(), e);
+			}
+
+			try {
+				Method accessor = owner.getMethod(name);
+				if (accessor.getReturnType() != void.class && !Modifier.isStatic(accessor.getModifiers())) {
+					return accessible(accessor);
+				}
+			} catch (NoSuchMethodException e) {
+				// not an accessor style class
+			}
+			return null;
+		}
+
+		private static Field findField(Class<?> owner, String name) {
+			try {
+				Field field = owner.getField(name);
+				if (!Modifier.isStatic(field.getModifiers())) {
+					field.setAccessible(true);
+					return field;
+				}
+			} catch (NoSuchFieldException e) {
+				// fall through to runtime resolution
+			}
+			return null;
+		}
+
+		private static Method accessible(Method method) {
+			method.setAccessible(true);
+			return method;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of built criteria queries for one {@link EntityManagerFactory}, keyed by the shape of a
+ * filter (see {@link JpaELFilterImpl}). Criteria queries hold on to their factory, so caches of closed
+ * factories are dropped whenever another factory's cache is looked up.
+ * <p>
+ * The size defaults to {@value #DEFAULT_SIZE} and can be changed with the system property
+ * {@value #SIZE_PROPERTY}. A size of 0 disables caching.
+ */
+final class QueryTemplateCache {
+
+	static final String SIZE_PROPERTY = "com.github.gdjennings.elrest.query_cache_size";
+	static final int DEFAULT_SIZE = 256;
+
+	private static final Map<EntityManagerFactory, QueryTemplateCache> CACHES = new WeakHashMap<>();
+
+	private final int maxSize;
+	private final Map<Object, JpaELFilterImpl.QueryTemplate> templates;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private QueryTemplateCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.templates = new LinkedHashMap<Object, JpaELFilterImpl.QueryTemplate>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, JpaELFilterImpl.QueryTemplate> eldest) {
+				return size() > QueryTemplateCache.this.maxSize;
+			}
+		};
+	}
+
+	static QueryTemplateCache forFactory(EntityManagerFactory emf) {
+		synchronized (CACHES) {
+			QueryTemplateCache cache = CACHES.get(emf);
+			if (cache == null) {
+				CACHES.keySet().removeIf(f -> !f.isOpen());
+				cache = new QueryTemplateCache(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+				CACHES.put(emf, cache);
+			}
+			return cache;
+		}
+	}
+
+	JpaELFilterImpl.QueryTemplate get(Object key) {
+		JpaELFilterImpl.QueryTemplate template;
+		synchronized (templates) {
+			template = templates.get(key);
+		}
+		(template != null ? hits : misses).incrementAndGet();
+		return template;
+	}
+
+	void put(Object key, JpaELFilterImpl.QueryTemplate template) {
+		if (maxSize > 0) {
+			synchronized (templates) {
+				templates.put(key, template);
+			}
+		}
+	}
+
+	void clear() {
+		synchronized (templates) {
+			templates.clear();
+		}
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+}
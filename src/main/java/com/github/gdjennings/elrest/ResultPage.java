@@ -0,0 +1,31 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import java.util.List;
+
+/**
+ * A page of results with the total number of results of the filter, see
+ * {@link JpaELFilterImpl#getPage(Class, int, int)}.
+ */
+public final class ResultPage<T> {
+
+	private final List<T> results;
+	private final long total;
+
+	ResultPage(List<T> results, long total) {
+		this.results = results;
+		this.total = total;
+	}
+
+	public List<T> getResults() {
+		return results;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+}
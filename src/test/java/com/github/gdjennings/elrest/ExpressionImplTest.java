@@ -11,10 +11,25 @@ import com.github.gdjennings.elrest.test.User;
 import org.junit.jupiter.api.Test;
 
 import javax.xml.bind.DatatypeConverter;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -94,6 +109,30 @@ public class ExpressionImplTest {
 		assertEquals(e1.getName(), ((Instance) r.get(0)).getName());
 	}
 
+	@Test
+	public void testBetween() throws Exception {
+		Instance e1 = new Instance();
+		e1.setName("apple");
+		e1.setaLong(1L);
+
+		Instance e2 = new Instance();
+		e2.setName("banana");
+		e2.setaLong(2L);
+
+		Instance e3 = new Instance();
+		e3.setName("cherry");
+		e3.setaLong(3L);
+
+		List<Instance> r = new ELFilterImpl<Instance>(Arrays.asList(e1, e2, e3)).filter("aLong between 2 and 3").getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(Arrays.asList(e2, e3), r);
+
+		r = new ELFilterImpl<Instance>(Arrays.asList(e1, e2, e3)).filter("name between \"apple\" and \"b\"").getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(Arrays.asList(e1), r);
+
+		r = new ELFilterImpl<Instance>(Arrays.asList(e1, e2, e3)).filter("aLong between null and 3").getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertTrue(r.isEmpty());
+	}
+
 	@Test
 	public void testBooleanProperty() throws Exception {
 
@@ -259,6 +298,12 @@ public class ExpressionImplTest {
 		assertNotNull(r);
 		assertEquals(1, r.size());
 		assertEquals("u1", r.get(0).getUsername());
+
+		// values that are not dates can never match
+		el = new ELFilterImpl(Arrays.asList(u1, u2)).filter("createdDate in \""+ DatatypeConverter.printDateTime(u1.getCreatedDate())+",bogus\"");
+		r = el.getResultList(User.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("u1", r.get(0).getUsername());
 	}
 
 	@Test
@@ -309,4 +354,473 @@ public class ExpressionImplTest {
 		assertEquals("u1", r.get(0).getName());
 
 	}
+
+	@Test
+	public void testCaseFunction() throws Exception {
+		Instance e1 = new Instance();
+		e1.setName("TestName1");
+
+		Instance e2 = new Instance();
+		e2.setName("testName2");
+
+		ELFilter el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("lower(name) eq \"testname1\"");
+		List<Instance> r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+
+		assertEquals(1, r.size());
+		assertEquals("TestName1", r.get(0).getName());
+
+		el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("upper(name) like \"TESTNAME%\"");
+		r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+
+		assertEquals(2, r.size());
+	}
+
+	@Test
+	public void testEnumAndNestedProperty() throws Exception {
+		Instance parent = new Instance();
+		parent.setName("parent");
+		parent.setAnEnum(Instance.InstanceEnum.TYPE2);
+
+		Instance e1 = new Instance();
+		e1.setName("e1");
+		e1.setAnEnum(Instance.InstanceEnum.TYPE1);
+		e1.setCircular(parent);
+
+		Instance e2 = new Instance();
+		e2.setName("e2");
+		e2.setAnEnum(Instance.InstanceEnum.TYPE2);
+
+		ELFilter el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("anEnum eq TYPE1");
+		List<Instance> r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("e1", r.get(0).getName());
+
+		el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("circular.anEnum eq TYPE2");
+		r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("e1", r.get(0).getName());
+
+		el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("circular.name ne null or anEnum gt TYPE1");
+		assertEquals(2L, (long) el.count());
+	}
+
+	@Test
+	public void testMapElements() throws Exception {
+		HashMap<String, Object> m1 = new HashMap<>();
+		m1.put("name", "m1");
+		m1.put("size", 10);
+
+		HashMap<String, Object> m2 = new HashMap<>();
+		m2.put("name", "m2");
+		m2.put("size", 20L);
+
+		ELFilter el = new ELFilterImpl(Arrays.asList(m1, m2)).filter("size gt 15");
+		List<Map> r = el.getResultList(Map.class, Integer.MAX_VALUE, 0);
+
+		assertEquals(1, r.size());
+		assertEquals("m2", r.get(0).get("name"));
+
+		// values of no known type compare as strings
+		Object tag = new Object();
+		m1.put("tag", tag);
+		r = new ELFilterImpl(Arrays.asList(m1, m2)).filter("tag eq \"" + tag + "\"").getResultList(Map.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("m1", r.get(0).get("name"));
+	}
+
+	@Test
+	public void testGeneratedExecutionMode() throws Exception {
+		Instance parent = new Instance();
+		parent.setName("parent");
+		parent.setNumber(7);
+
+		Instance e1 = new Instance();
+		e1.setName("e1");
+		e1.setNumber(1);
+		e1.setaBool(true);
+		e1.setaLong(10L);
+		e1.setCircular(parent);
+
+		Instance e2 = new Instance();
+		e2.setName("e2");
+		e2.setNumber(2);
+		e2.setaLong(20L);
+
+		String[] filters = {
+				"number gt 1", "number le 1", "number ne 2", "aBool eq true", "aBool ne true", "aLong gte 15",
+				"circular.number eq 7", "circular.number ne 7", "name in \"e1,e3\"", "number lt 1.5", "lower(name) eq e2",
+				"aLong between 15 and 25", "number between 0 and 1.5"
+		};
+		for (String filter : filters) {
+			List<Instance> interpreted = new ELFilterImpl<Instance>(Arrays.asList(e1, e2)).filter(filter).getResultList(Instance.class, Integer.MAX_VALUE, 0);
+			List<Instance> generated = new ELFilterImpl<Instance>(Arrays.asList(e1, e2)).executionMode(ELFilterImpl.ExecutionMode.GENERATED)
+					.filter(filter).getResultList(Instance.class, Integer.MAX_VALUE, 0);
+
+			assertEquals(1, generated.size(), filter);
+			assertEquals(interpreted, generated, filter);
+		}
+	}
+
+	@Test
+	public void testGeneratedPredicateCache() throws Exception {
+		FilterExpressionCache parser = new FilterExpressionCache(0);
+		Predicate<Object> ge = PredicateGenerator.generate(parser.parse("number ge 1 and name !in \"a,b\""), Instance.class);
+		assertSame(ge, PredicateGenerator.generate(parser.parse("number gte 1 and name not in \"a,b\""), Instance.class));
+		assertNotSame(ge, PredicateGenerator.generate(parser.parse("number ge 2 and name not in \"a,b\""), Instance.class));
+
+		// filters seen last are kept however many others were generated before
+		for (int i = 0; i < 300; i++) {
+			PredicateGenerator.generate(parser.parse("number eq " + i), Instance.class);
+		}
+		Predicate<Object> recent = PredicateGenerator.generate(parser.parse("number eq 1000"), Instance.class);
+		assertSame(recent, PredicateGenerator.generate(parser.parse("number eq 1000"), Instance.class));
+	}
+
+	@Test
+	public void testOrderBy() throws Exception {
+		Instance e1 = new Instance();
+		e1.setName("e1");
+		e1.setNumber(2);
+		e1.setField("B");
+
+		Instance e2 = new Instance();
+		e2.setName("e2");
+		e2.setNumber(1);
+		e2.setField("B");
+
+		Instance e3 = new Instance();
+		e3.setName("e3");
+		e3.setNumber(3);
+		e3.setField("A");
+
+		List<Instance> r = new ELFilterImpl<Instance>(Arrays.asList(e1, e2, e3)).orderBy("number").getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(Arrays.asList(e2, e1, e3), r);
+
+		r = new ELFilterImpl<Instance>(Arrays.asList(e1, e2, e3)).orderBy("field", "-number").getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(Arrays.asList(e3, e1, e2), r);
+	}
+
+	@Test
+	public void testPropertyAccessors() throws Exception {
+		Instance parent = new Instance();
+		parent.setName("parent");
+
+		Instance child = new Instance();
+		child.setCircular(parent);
+
+		HashMap<String, Object> map = new HashMap<>();
+		map.put("instance", child);
+
+		assertEquals("parent", PropertyAccessors.get(child, "circular.name"));
+		assertEquals("parent", PropertyAccessors.get(map, "instance.circular.name"));
+		assertNull(PropertyAccessors.get(parent, "circular.name"));
+		assertSame(PropertyAccessors.path(Instance.class, "circular.name"), PropertyAccessors.path(Instance.class, "circular.name"));
+		assertEquals(String.class, PropertyAccessors.path(Instance.class, "circular.name").getType());
+		assertEquals(3, PropertyAccessors.get(new PublicFields("abc"), "value.length"));
+		assertThrows(IllegalArgumentException.class, () -> PropertyAccessors.path(Instance.class, "missing"));
+	}
+
+	public static class PublicFields {
+		public final String value;
+
+		PublicFields(String value) {
+			this.value = value;
+		}
+	}
+
+	@Test
+	public void testLikeShapes() throws Exception {
+		Instance e1 = new Instance();
+		e1.setName("a.b(1)");
+
+		Instance e2 = new Instance();
+		e2.setName("axb(1)");
+
+		Instance e3 = new Instance();
+		e3.setName("Other");
+
+		String[][] cases = {
+				{"name like \"a.b%\"", "a.b(1)"},
+				{"name like \"%b(1)\"", "a.b(1),axb(1)"},
+				{"name like \"%.b%\"", "a.b(1)"},
+				{"name like \"a%(1)\"", "a.b(1),axb(1)"},
+				{"name like \"Other\"", "Other"},
+				{"name like \"%\"", "a.b(1),axb(1),Other"},
+				{"name not like \"%(%\"", "Other"},
+				{"lower(name) like \"oth%\"", "Other"},
+				{"lower(name) like \"%THER\"", ""},
+				{"upper(name) like \"%THER\"", "Other"},
+				{"upper(name) like \"%X%\"", "axb(1)"},
+				{"lower(name) like \"o%r\"", "Other"},
+				{"lower(name) not like \"%b(%\"", "Other"}
+		};
+		for (String[] c : cases) {
+			List<Instance> r = new ELFilterImpl<Instance>(Arrays.asList(e1, e2, e3)).filter(c[0]).getResultList(Instance.class, Integer.MAX_VALUE, 0);
+			assertEquals(c[1], r.stream().map(Instance::getName).collect(Collectors.joining(",")), c[0]);
+		}
+	}
+
+	@Test
+	public void testInMatchesWholeValues() throws Exception {
+		Instance e1 = new Instance();
+		e1.setName("testName1");
+		e1.setNumber(1);
+
+		Instance e2 = new Instance();
+		e2.setName("testName2");
+		e2.setNumber(12);
+
+		ELFilter el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("name in \"testName12,estName2\"");
+		assertEquals(0L, (long) el.count());
+
+		el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("name not in \"testName12, testName2\"");
+		List<Instance> r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("testName1", r.get(0).getName());
+
+		el = new ELFilterImpl(Arrays.asList(e1, e2)).filter("number in \"2,1.0\"");
+		r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("testName1", r.get(0).getName());
+	}
+
+	@Test
+	public void testLargeNumericIn() throws Exception {
+		List<Instance> instances = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Instance e = new Instance();
+			e.setName("e" + i);
+			e.setNumber(i);
+			e.setaLong((long) i);
+			instances.add(e);
+		}
+		String ids = IntStream.range(0, 5000).filter(i -> i % 3 == 0).mapToObj(String::valueOf).collect(Collectors.joining(","));
+
+		for (ELFilterImpl.ExecutionMode mode : ELFilterImpl.ExecutionMode.values()) {
+			assertEquals(334L, (long) new ELFilterImpl<Instance>(instances).executionMode(mode).filter("number in \"" + ids + "\"").count(), mode.name());
+			assertEquals(334L, (long) new ELFilterImpl<Instance>(instances).executionMode(mode).filter("aLong in \"" + ids + "\"").count(), mode.name());
+			assertEquals(666L, (long) new ELFilterImpl<Instance>(instances).executionMode(mode).filter("number not in \"" + ids + "\"").count(), mode.name());
+		}
+	}
+
+	@Test
+	public void testLongHashSet() {
+		LongHashSet small = LongHashSet.of(5, -1, 5, 0);
+		assertEquals(3, small.size());
+		assertTrue(small.test(0));
+		assertTrue(small.test(-1));
+		assertFalse(small.test(1));
+
+		long[] values = new long[100];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) i * 1_000_003L - 50;
+		}
+		LongHashSet large = LongHashSet.of(values);
+		assertEquals(100, large.size());
+		for (long v : values) {
+			assertTrue(large.test(v));
+			assertFalse(large.test(v + 1));
+		}
+		assertFalse(large.test(0));
+	}
+
+	@Test
+	public void testLimitAndSkip() throws Exception {
+		List<Instance> instances = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			Instance e = new Instance();
+			e.setName("e" + i);
+			e.setNumber(i % 5);
+			instances.add(e);
+		}
+
+		List<Instance> r = new ELFilterImpl<Instance>(instances).filter("number ne 0").getResultList(Instance.class, 3, 2);
+		assertEquals(Arrays.asList("e3", "e4", "e6"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+
+		r = new ELFilterImpl<Instance>(instances).filter("number ne 0").getResultList(Instance.class, 0, 14);
+		assertEquals(Arrays.asList("e18", "e19"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+
+		r = new ELFilterImpl<Instance>(instances).orderBy("-number").getResultList(Instance.class, 3, 3);
+		assertEquals(Arrays.asList("e19", "e3", "e8"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+
+		r = new ELFilterImpl<Instance>(instances).orderBy("-number").getResultList(Instance.class, Integer.MAX_VALUE, 18);
+		assertEquals(Arrays.asList("e10", "e15"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+
+		// stops reading the source once enough matches are found
+		int[] evaluated = {0};
+		r = new ELFilterImpl<Instance>(new AbstractList<Instance>() {
+			public Instance get(int index) {
+				evaluated[0]++;
+				return instances.get(index);
+			}
+
+			public int size() {
+				return instances.size();
+			}
+		}).filter("number eq 1").getResultList(Instance.class, 2, 1);
+		assertEquals(Arrays.asList("e6", "e11"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+		assertEquals(12, evaluated[0]);
+
+		Instance single = instances.get(0);
+		assertTrue(new ELFilterImpl<Instance>(single).filter("number eq 1").getResultList(Instance.class, 10, 0).isEmpty());
+		assertEquals(Arrays.asList(single), new ELFilterImpl<Instance>(single).filter("number eq 0").getResultList(Instance.class, 10, 0));
+	}
+
+	@Test
+	public void testStreamSources() throws Exception {
+		List<Instance> instances = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Instance e = new Instance();
+			e.setName("e" + i);
+			e.setNumber(i % 3);
+			instances.add(e);
+		}
+
+		assertEquals(3, new ELFilterImpl<Instance>(instances.iterator()).filter("number eq 1").count().longValue());
+		assertEquals(3, new ELFilterImpl<Instance>(instances.spliterator()).filter("number eq 2").count().longValue());
+
+		boolean[] closed = {false};
+		ELFilterImpl<Instance> fromStream = new ELFilterImpl<Instance>(instances.stream().onClose(() -> closed[0] = true));
+		fromStream.filter("number eq 0").orderBy("-name");
+		List<Instance> r = fromStream.getResultList(Instance.class, 2, 0);
+		assertEquals(Arrays.asList("e9", "e6"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+		assertTrue(closed[0]);
+		assertThrows(IllegalStateException.class, fromStream::count);
+
+		// lazily evaluated, nothing beyond the first match is read
+		int[] read = {0};
+		ELFilterImpl<Instance> lazy = new ELFilterImpl<Instance>(instances.stream().peek(e -> read[0]++));
+		lazy.filter("number eq 1");
+		try (Stream<Instance> results = lazy.getResultStream()) {
+			assertEquals(0, read[0]);
+			assertEquals("e1", results.findFirst().get().getName());
+			assertEquals(2, read[0]);
+		}
+
+		assertEquals(10, new ELFilterImpl<Instance>(instances).getResultStream().spliterator().getExactSizeIfKnown());
+		ELFilterImpl<Instance> filtered = new ELFilterImpl<Instance>(instances);
+		filtered.filter("number eq 2");
+		assertEquals(Arrays.asList("e2", "e5", "e8"), filtered.getResultStream().map(Instance::getName).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testExistsAndCountUpTo() throws Exception {
+		// both stop scanning an endless source once they know the answer
+		ELFilterImpl<Instance> endless = new ELFilterImpl<Instance>(Stream.iterate(0, i -> i + 1).map(i -> {
+			Instance e = new Instance();
+			e.setNumber(i);
+			return e;
+		}));
+		endless.filter("number gt 10");
+		assertEquals(5, endless.countUpTo(5));
+
+		List<Instance> instances = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Instance e = new Instance();
+			e.setNumber(i);
+			instances.add(e);
+		}
+		ELFilterImpl<Instance> el = new ELFilterImpl<Instance>(instances);
+		el.filter("number ge 7");
+		assertTrue(el.exists());
+		assertEquals(3, el.countUpTo(100));
+		assertEquals(0, el.countUpTo(0));
+		el.filter("number gt 9");
+		assertFalse(el.exists());
+		assertTrue(new ELFilterImpl<Instance>(Stream.generate(Instance::new)).exists());
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		List<Instance> instances = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			Instance e = new Instance();
+			e.setName("e" + i);
+			e.setNumber(i % 7);
+			instances.add(e);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Set<Boolean> inPool = ConcurrentHashMap.newKeySet();
+			List<Instance> observed = new AbstractList<Instance>() {
+				public Instance get(int index) {
+					inPool.add(ForkJoinTask.getPool() == pool);
+					return instances.get(index);
+				}
+
+				public int size() {
+					return instances.size();
+				}
+			};
+
+			ELFilterImpl<Instance> el = new ELFilterImpl<Instance>(observed).parallel(pool, 1000);
+			el.filter("number eq 3");
+			assertEquals(714, el.count().longValue());
+			assertEquals(Collections.singleton(true), inPool);
+
+			List<Instance> r = el.getResultList(Instance.class, 3, 2);
+			assertEquals(Arrays.asList("e17", "e24", "e31"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+			assertEquals("e3", el.getSingleResult(Instance.class).getName());
+
+			el.filter("number ge 5").orderBy("-number");
+			r = el.getResultList(Instance.class, 4, 1);
+			assertEquals(Arrays.asList("e13", "e20", "e27", "e34"), r.stream().map(Instance::getName).collect(Collectors.toList()));
+
+			// below the threshold nothing runs in the pool
+			inPool.clear();
+			el = new ELFilterImpl<Instance>(observed).parallel(pool, instances.size() + 1);
+			el.filter("number eq 3");
+			assertEquals(714, el.count().longValue());
+			assertEquals(Collections.singleton(false), inPool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFilterPlan() throws Exception {
+		String[] order = {"-number"};
+		FilterPlan plan = FilterPlan.compile("number ge 2").orderBy(order);
+		order[0] = "name";
+		assertArrayEquals(new String[]{"-number"}, plan.getOrderByFields());
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<Integer>>> results = new ArrayList<>();
+			for (int t = 0; t < 16; t++) {
+				int size = t + 1;
+				results.add(executor.submit(() -> {
+					List<Instance> instances = new ArrayList<>();
+					for (int i = 0; i < size; i++) {
+						Instance e = new Instance();
+						e.setName("e" + i);
+						e.setNumber(i);
+						instances.add(e);
+					}
+					return plan.<Instance>bind(instances).getResultList(Instance.class, 2, 0).stream()
+							.map(Instance::getNumber).collect(Collectors.toList());
+				}));
+			}
+			for (int t = 0; t < 16; t++) {
+				List<Integer> expected = IntStream.of(t, t - 1).filter(n -> n >= 2).boxed().collect(Collectors.toList());
+				assertEquals(expected, results.get(t).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, plan.predicates(ELFilterImpl.ExecutionMode.INTERPRETED).size());
+
+		Instance e = new Instance();
+		e.setName("e");
+		e.setNumber(3);
+		ELFilterImpl<Instance> el = new ELFilterImpl<>(Arrays.asList(e));
+		el.filter("number eq 3").select("name");
+		FilterPlan snapshot = el.toPlan();
+		el.filter("number eq 4");
+		assertEquals(0, el.count().longValue());
+		assertEquals(1, snapshot.bind(Arrays.asList(e)).count().longValue());
+		assertArrayEquals(new String[]{"name"}, snapshot.getSelectFields());
+		assertEquals(1, FilterPlan.compile(null).bind(Arrays.asList(e)).count().longValue());
+	}
 }
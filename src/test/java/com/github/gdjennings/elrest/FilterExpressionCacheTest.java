@@ -0,0 +1,66 @@
+/*
+ *
+ * Copyright (c) .Grant Jennings. All rights reserved.
+ * Licensed under the ##LICENSENAME##. See LICENSE file in the project root for full license information.
+*/
+package com.github.gdjennings.elrest;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FilterExpressionCacheTest {
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		FilterExpressionCache cache = new FilterExpressionCache(10);
+
+		FilterExpression first = cache.parse("a eq b");
+		FilterExpression second = cache.parse("a eq b");
+
+		assertSame(first, second);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		FilterExpressionCache cache = new FilterExpressionCache(2);
+
+		FilterExpression a = cache.parse("a eq 1");
+		cache.parse("b eq 2");
+		cache.parse("a eq 1");
+		cache.parse("c eq 3");
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertSame(a, cache.parse("a eq 1"));
+
+		cache.parse("b eq 2");
+		assertEquals(4, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void testFailuresAreCached() {
+		FilterExpressionCache cache = new FilterExpressionCache(10);
+
+		ParseException e1 = assertThrows(ParseException.class, () -> cache.parse("a eq"));
+		ParseException e2 = assertThrows(ParseException.class, () -> cache.parse("a eq"));
+
+		assertNotSame(e1, e2);
+		assertEquals(e1.getMessage(), e2.getMessage());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		FilterExpressionCache cache = new FilterExpressionCache(0);
+
+		assertNotSame(cache.parse("a eq b"), cache.parse("a eq b"));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMissCount());
+	}
+}
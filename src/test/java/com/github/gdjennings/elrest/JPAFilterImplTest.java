@@ -9,6 +9,9 @@ package com.github.gdjennings.elrest;
 import com.github.gdjennings.elrest.test.CompositeKeyInstance;
 import com.github.gdjennings.elrest.test.CompositePKWithoutIdClass;
 import com.github.gdjennings.elrest.test.Instance;
+import com.github.gdjennings.elrest.test.InstanceWithNumericPrimaryKey;
+import com.github.gdjennings.elrest.test.ManyToMany1;
+import com.github.gdjennings.elrest.test.ManyToMany2;
 import com.github.gdjennings.elrest.test.OneToManyCompositeInstance;
 import com.github.gdjennings.elrest.test.OneToManyInstance;
 import com.github.gdjennings.elrest.test.User;
@@ -20,8 +23,11 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Path;
@@ -29,8 +35,17 @@ import javax.persistence.criteria.Root;
 import javax.persistence.metamodel.Bindable;
 import javax.persistence.metamodel.PluralAttribute;
 import javax.xml.bind.DatatypeConverter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -372,6 +387,786 @@ public class JPAFilterImplTest {
 		assertEquals(e1.getName(), ((Instance) r.get(0)).getName());
 	}
 
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testCaseFunctionWithCachedExpression(String provider) throws Exception {
+
+		Instance e1 = new Instance();
+		e1.setName("TestName1");
+		em.persist(e1);
+
+		Instance e2 = new Instance();
+		e2.setName("testName2");
+		em.persist(e2);
+
+		for (int i = 0; i < 2; i++) {
+			ELFilter el = new JpaELFilterImpl(em, Instance.class)
+			.filter("lower(name) eq \"testname1\"");
+			List r = el.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+
+			assertNotNull(r);
+			assertEquals(1, r.size());
+			assertEquals(e1.getName(), ((Instance) r.get(0)).getName());
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testIndexFriendlyRewrites(String provider) throws Exception {
+		for (int i = 1; i <= 4; i++) {
+			Instance e = new Instance();
+			e.setName("Range" + i);
+			e.setNumber(i);
+			e.setField("range" + i);
+			em.persist(e);
+		}
+
+		assertEquals(2L, new JpaELFilterImpl<>(em, Instance.class).filter("number between 2 and 3 and name like \"Range%\"").count().longValue());
+		assertEquals(0L, new JpaELFilterImpl<>(em, Instance.class).filter("number between null and 3").count().longValue());
+
+		JpaELFilterImpl<Instance> merged = new JpaELFilterImpl<>(em, Instance.class);
+		merged.filter("number ge 2 and name like \"Range%\" and number le 3");
+		TypedQuery<Instance> q = merged.prepareSelect(Instance.class);
+		assertEquals(2, q.getResultList().size());
+		if ("hibernate".equals(provider)) {
+			assertTrue(q.unwrap(org.hibernate.query.Query.class).getQueryString().contains(" between "));
+		}
+
+		// prefix patterns and other patterns of the same shape do not share a query
+		assertEquals(1L, new JpaELFilterImpl<>(em, Instance.class).filter("name like \"Range1%\"").count().longValue());
+		assertEquals(1L, new JpaELFilterImpl<>(em, Instance.class).filter("name like \"R%ge1\"").count().longValue());
+		assertEquals(4L, new JpaELFilterImpl<>(em, Instance.class).filter("name like \"Range_%\"").count().longValue());
+
+		JpaELFilterImpl<Instance> shadowed = new JpaELFilterImpl<>(em, Instance.class).normalizedCase("lower(name)", "field");
+		shadowed.filter("lower(name) eq \"range2\" or lower(name) like \"range4%\"");
+		q = shadowed.prepareSelect(Instance.class);
+		assertEquals(2, q.getResultList().size());
+		if ("hibernate".equals(provider)) {
+			assertFalse(q.unwrap(org.hibernate.query.Query.class).getQueryString().contains("lower("));
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testPrefixLikeWithLinguisticCollation(String provider) throws Exception {
+		Instance e = new Instance();
+		e.setName("ab-c");
+		em.persist(e);
+
+		// capabilities are read once per factory, and each test has its own
+		System.setProperty(DialectCapabilities.PREFIX + "code_point_collation", "false");
+		try {
+			TypedQuery<Instance> q = FilterPlan.compile("name like \"ab-%\"").bind(em, Instance.class).prepareSelect(Instance.class);
+			assertEquals(1, q.getParameters().size());
+			assertEquals(1, q.getResultList().size());
+		} finally {
+			System.clearProperty(DialectCapabilities.PREFIX + "code_point_collation");
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testFilterPlan(String provider) throws Exception {
+		for (int i = 1; i <= 3; i++) {
+			Instance e = new Instance();
+			e.setName("plan" + i);
+			e.setNumber(i);
+			em.persist(e);
+		}
+
+		FilterPlan plan = FilterPlan.compile("name like \"plan%\" and number gt 1").orderBy("-number");
+		List<Instance> r = plan.bind(em, Instance.class).getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(2, r.size());
+		assertEquals("plan3", r.get(0).getName());
+		assertEquals(2L, plan.bind(em, Instance.class).count().longValue());
+		// the same plan runs against the persisted instances in memory
+		assertEquals(2L, plan.bind(em.createQuery("select i from Instance i", Instance.class).getResultList()).count().longValue());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testValuesAreBoundAsParameters(String provider) throws Exception {
+		for (int i = 1; i <= 3; i++) {
+			Instance e = new Instance();
+			e.setName("bound" + i);
+			e.setNumber(i);
+			e.setField(i % 2 == 0 ? "even" : "odd");
+			em.persist(e);
+		}
+
+		TypedQuery<Instance> q1 = FilterPlan.compile("name like \"bound%\" and number gt 1 and field in \"odd,even\"")
+				.bind(em, Instance.class).prepareSelect(Instance.class);
+		TypedQuery<Instance> q2 = FilterPlan.compile("name like \"x%\" and number gt 2 and field in \"a,b\"")
+				.bind(em, Instance.class).prepareSelect(Instance.class);
+		// the prefix like binds the range start and end besides the pattern
+		assertEquals(6, q1.getParameters().size());
+		if ("hibernate".equals(provider)) {
+			assertEquals(q1.unwrap(org.hibernate.query.Query.class).getQueryString(), q2.unwrap(org.hibernate.query.Query.class).getQueryString());
+		}
+		assertEquals(2, q1.getResultList().size());
+		assertEquals(0, q2.getResultList().size());
+
+		ELFilter<Instance> el = new JpaELFilterImpl<>(em, Instance.class).filter("number in \"1,3,x\"");
+		assertEquals(2L, el.count().longValue());
+		el = new JpaELFilterImpl<>(em, Instance.class).filter("number eq 2 or number ne 2.5");
+		assertEquals(3L, el.count().longValue());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testQueryTemplateReuse(String provider) throws Exception {
+		for (int i = 1; i <= 4; i++) {
+			Instance e = new Instance();
+			e.setName("template" + i);
+			e.setNumber(i);
+			e.setField(i % 2 == 0 ? "even" : "odd");
+			em.persist(e);
+		}
+
+		QueryTemplateCache cache = QueryTemplateCache.forFactory(em.getEntityManagerFactory());
+		cache.clear();
+		long misses = cache.getMissCount();
+		long hits = cache.getHitCount();
+
+		assertEquals(3, new JpaELFilterImpl<>(em, Instance.class).filter("number gt 1 and field in \"odd,even\"").orderBy("name")
+				.getResultList(Instance.class, Integer.MAX_VALUE, 0).size());
+		List<Instance> r = new JpaELFilterImpl<>(em, Instance.class).filter("number gt 2 and field in \"even,none\"").orderBy("name")
+				.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("template4", r.get(0).getName());
+		assertEquals(misses + 1, cache.getMissCount());
+		assertEquals(hits + 1, cache.getHitCount());
+
+		// a different shape or terminal gets its own template
+		assertEquals(1L, new JpaELFilterImpl<>(em, Instance.class).filter("number gt 2 and field in even").count().longValue());
+		assertEquals(2L, new JpaELFilterImpl<>(em, Instance.class).filter("number gt 2 and field in \"odd,even\"").count().longValue());
+		assertEquals(4L, new JpaELFilterImpl<>(em, Instance.class).filter("number gt 0 and field in \"odd,even\"").count().longValue());
+		assertEquals(misses + 3, cache.getMissCount());
+		assertEquals(hits + 2, cache.getHitCount());
+
+		// templates are shared by entity managers of the same factory
+		EntityManager other = em.getEntityManagerFactory().createEntityManager();
+		try {
+			assertEquals(0L, new JpaELFilterImpl<>(other, Instance.class).filter("number gt 3 and field in \"odd,even\"").count().longValue());
+			assertEquals(hits + 3, cache.getHitCount());
+		} finally {
+			other.close();
+		}
+
+		// values that cannot be bound like the template's build a query of their own
+		assertEquals(3L, new JpaELFilterImpl<>(em, Instance.class).filter("number gt 1.5 and field in \"odd,even\"").count().longValue());
+		assertEquals(0L, new JpaELFilterImpl<>(em, Instance.class).filter("field eq null").count().longValue());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testManyToManyPaths(String provider) throws Exception {
+		ManyToMany1 a = new ManyToMany1();
+		a.setId("a");
+		em.persist(a);
+		ManyToMany1 b = new ManyToMany1();
+		b.setId("b");
+		em.persist(b);
+
+		ManyToMany2 x = new ManyToMany2();
+		x.setId("x");
+		x.getTo1().add(a);
+		x.getTo1().add(b);
+		em.persist(x);
+		ManyToMany2 y = new ManyToMany2();
+		y.setId("y");
+		y.getTo1().add(b);
+		em.persist(y);
+		em.flush();
+
+		List<ManyToMany2> r = new JpaELFilterImpl<>(em, ManyToMany2.class).filter("to1.id eq a")
+				.getResultList(ManyToMany2.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("x", r.get(0).getId());
+		assertEquals(2L, new JpaELFilterImpl<>(em, ManyToMany2.class).filter("to1.id eq b").count().longValue());
+
+		AttributePath path = AttributePath.resolve(em.getEntityManagerFactory(), em.getMetamodel().entity(ManyToMany2.class), "to1.id");
+		assertSame(path, AttributePath.resolve(em.getEntityManagerFactory(), em.getMetamodel().entity(ManyToMany2.class), "to1.id"));
+		assertTrue(path.isToMany());
+		assertFalse(path.isPlural());
+		assertThrows(IllegalArgumentException.class, () -> AttributePath.resolve(em.getMetamodel().entity(ManyToMany2.class), "id.length"));
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testToManyPathsAsExists(String provider) throws Exception {
+		OneToManyInstance i1 = new OneToManyInstance();
+		i1.setName("i1");
+		em.persist(i1);
+		OneToManyInstance i4 = new OneToManyInstance();
+		i4.setName("i4");
+		em.persist(i4);
+		OneToManyInstance i6 = new OneToManyInstance();
+		i6.setName("i6");
+		em.persist(i6);
+		for (String[] child : new String[][]{{"i2", "x", "i1"}, {"i3", "y", "i1"}, {"i5", null, "i4"}}) {
+			OneToManyInstance c = new OneToManyInstance();
+			c.setName(child[0]);
+			c.setaString(child[1]);
+			c.setOne(child[2].equals("i1") ? i1 : i4);
+			c.getOne().getMany().add(c);
+			em.persist(c);
+		}
+		em.flush();
+		em.clear();
+
+		// conjuncts on the same collection must match the same element
+		assertEquals(0L, new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("many.name eq i2 and many.aString eq y").count().longValue());
+		assertEquals(Collections.singletonList("i1"), names(new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("many.name eq i2 and many.aString eq x and name ne i4")));
+		// an empty collection matches null as it did when left joined
+		assertEquals(Arrays.asList("i2", "i3", "i4", "i5", "i6"), names(new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("many.aString eq null")));
+		assertEquals(Arrays.asList("i2", "i3", "i5", "i6"), names(new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("many eq null")));
+		assertEquals(Arrays.asList("i1", "i4"), names(new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("many.name eq i2 or many.name eq i5")));
+		assertEquals(2L, new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("many.name ne null").count().longValue());
+
+		// without a join there are no duplicates to remove, so ordering by a joined property works
+		JpaELFilterImpl<OneToManyInstance> el = new JpaELFilterImpl<>(em, OneToManyInstance.class);
+		el.filter("many.name ne null or one.name eq i4");
+		el.orderBy("-one.name", "name");
+		assertEquals(Arrays.asList("i5", "i1", "i4"), el.getResultList(OneToManyInstance.class, Integer.MAX_VALUE, 0)
+				.stream().map(OneToManyInstance::getName).collect(Collectors.toList()));
+	}
+
+	private static List<String> names(ELFilter<OneToManyInstance> el) {
+		el.orderBy("name");
+		return el.getResultList(OneToManyInstance.class, Integer.MAX_VALUE, 0).stream().map(OneToManyInstance::getName).collect(Collectors.toList());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testNestedManyToOnePath(String provider) throws Exception {
+		OneToManyInstance b = new OneToManyInstance();
+		b.setName("b");
+		em.persist(b);
+		OneToManyInstance a = new OneToManyInstance();
+		a.setName("a");
+		em.persist(a);
+
+		OneToManyInstance c1 = new OneToManyInstance();
+		c1.setName("c1");
+		c1.setOne(b);
+		em.persist(c1);
+		OneToManyInstance c2 = new OneToManyInstance();
+		c2.setName("c2");
+		c2.setOne(a);
+		em.persist(c2);
+		em.flush();
+
+		// both clauses share one join of the optional many to one
+		List<OneToManyInstance> r = new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("one.name ne null and one.name ne b").orderBy("-name")
+				.getResultList(OneToManyInstance.class, Integer.MAX_VALUE, 0);
+		assertEquals(1, r.size());
+		assertEquals("c2", r.get(0).getName());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testFetchPaths(String provider) throws Exception {
+		OneToManyInstance parent = new OneToManyInstance();
+		parent.setName("fetchParent");
+		em.persist(parent);
+		for (int i = 1; i <= 3; i++) {
+			OneToManyInstance child = new OneToManyInstance();
+			child.setName("fetchChild" + i);
+			child.setOne(parent);
+			em.persist(child);
+		}
+		em.flush();
+		em.clear();
+
+		ELFilter<OneToManyInstance> el = new JpaELFilterImpl<>(em, OneToManyInstance.class)
+				.filter("name like \"fetch%\"").orderBy("name").fetch("one", "one.many", "many");
+		List<OneToManyInstance> r = el.getResultList(OneToManyInstance.class, 2, 0);
+		assertEquals(2, r.size());
+		PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		for (OneToManyInstance i : r) {
+			assertTrue(util.isLoaded(i, "one"), i.getName());
+			assertTrue(util.isLoaded(i, "many"), i.getName());
+		}
+		assertTrue(util.isLoaded(r.get(0).getOne(), "many"));
+		assertEquals(3, r.get(0).getOne().getMany().size());
+
+		List<Tuple> t = new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("one.name eq fetchParent").select("name", "one.name")
+				.orderBy("name").getResultList(Tuple.class, Integer.MAX_VALUE, 0);
+		assertEquals(3, t.size());
+		assertEquals("fetchParent", t.get(0).get(1));
+
+		// unflushed changes of the entities are kept when their collections are loaded
+		em.clear();
+		em.setFlushMode(FlushModeType.COMMIT);
+		OneToManyInstance loaded = new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("name eq fetchChild1")
+				.getSingleResult(OneToManyInstance.class);
+		loaded.setOne(null);
+		r = new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("name eq fetchChild1").fetch("many")
+				.getResultList(OneToManyInstance.class, 1, 0);
+		assertSame(loaded, r.get(0));
+		assertNull(loaded.getOne());
+		assertTrue(util.isLoaded(loaded, "many"));
+		assertTrue(loaded.getMany().isEmpty());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testInnerJoinsForNullRejectingPaths(String provider) throws Exception {
+		OneToManyInstance a = new OneToManyInstance();
+		a.setName("a");
+		em.persist(a);
+		OneToManyInstance c1 = new OneToManyInstance();
+		c1.setName("c1");
+		c1.setOne(a);
+		em.persist(c1);
+		OneToManyInstance c2 = new OneToManyInstance();
+		c2.setName("c2");
+		em.persist(c2);
+		em.flush();
+
+		JpaELFilterImpl<OneToManyInstance> inner = new JpaELFilterImpl<>(em, OneToManyInstance.class);
+		inner.filter("one.name eq a and name like \"c%\"").orderBy("one.name");
+		TypedQuery<OneToManyInstance> q = inner.prepareSelect(OneToManyInstance.class);
+		assertEquals(Collections.singletonList(c1), q.getResultList());
+		if ("hibernate".equals(provider)) {
+			// the order shares the inner join of the filter
+			String query = q.unwrap(org.hibernate.query.Query.class).getQueryString();
+			assertTrue(query.contains("inner join"), query);
+			assertFalse(query.contains("left join"), query);
+		}
+
+		JpaELFilterImpl<OneToManyInstance> left = new JpaELFilterImpl<>(em, OneToManyInstance.class);
+		left.filter("one.name eq a or name eq c2");
+		q = left.prepareSelect(OneToManyInstance.class);
+		assertEquals(2, q.getResultList().size());
+		if ("hibernate".equals(provider)) {
+			assertTrue(q.unwrap(org.hibernate.query.Query.class).getQueryString().contains("left join"));
+		}
+
+		assertEquals(2L, new JpaELFilterImpl<>(em, OneToManyInstance.class).filter("one.name eq null and name ne b").count().longValue());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testKeysetPaging(String provider) throws Exception {
+		for (int i = 0; i < 10; i++) {
+			Instance e = new Instance();
+			e.setName("page" + i);
+			e.setNumber(i % 4);
+			e.setField(i % 3 == 0 ? null : "f" + (i % 3));
+			em.persist(e);
+		}
+
+		List<Instance> all = new JpaELFilterImpl<>(em, Instance.class).filter("number ne 3").orderBy("-number", "name")
+				.getResultList(Instance.class, Integer.MAX_VALUE, 0);
+		List<Instance> paged = new ArrayList<>();
+		String continuation = null;
+		int pages = 0;
+		do {
+			KeysetPage<Instance> page = ((JpaELFilterImpl<Instance>) new JpaELFilterImpl<>(em, Instance.class).filter("number ne 3").orderBy("-number"))
+					.getResultPage(Instance.class, 3, continuation);
+			paged.addAll(page.getResults());
+			continuation = page.getContinuation();
+			pages++;
+		} while (continuation != null);
+		assertEquals(8, all.size());
+		assertEquals(all, paged);
+		assertEquals(3, pages);
+
+		// nullable order fields and a continuation of another ordering
+		paged.clear();
+		continuation = null;
+		do {
+			KeysetPage<Instance> page = ((JpaELFilterImpl<Instance>) new JpaELFilterImpl<>(em, Instance.class).orderBy("field"))
+					.getResultPage(Instance.class, 4, continuation);
+			paged.addAll(page.getResults());
+			continuation = page.getContinuation();
+			if (continuation != null) {
+				String other = continuation;
+				assertThrows(IllegalArgumentException.class, () -> ((JpaELFilterImpl<Instance>) new JpaELFilterImpl<>(em, Instance.class).orderBy("-field"))
+						.getResultPage(Instance.class, 4, other));
+			}
+		} while (continuation != null);
+		assertEquals(10, paged.size());
+		assertEquals(10, paged.stream().map(Instance::getName).distinct().count());
+		assertNull(paged.get(0).getField());
+		assertEquals("f2", paged.get(9).getField());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testKeysetPagingNullOrdering(String provider) throws Exception {
+		assertThrows(IllegalArgumentException.class, () -> new JpaELFilterImpl<>(em, Instance.class).getResultPage(Instance.class, 0, null));
+
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.url", "jdbc:postgresql://localhost/test");
+		assertFalse(DialectCapabilities.of(properties).nullsSortFirst());
+		properties.put("javax.persistence.jdbc.url", "jdbc:informix-sqli://localhost:1533/test");
+		assertNull(DialectCapabilities.of(properties).nullsSortFirst());
+
+		Instance e = new Instance();
+		e.setName("nulls");
+		em.persist(e);
+		System.setProperty(DialectCapabilities.PREFIX + "database", "other");
+		try {
+			// where nulls sort is unknown only required order fields are allowed
+			assertThrows(IllegalArgumentException.class, () -> ((JpaELFilterImpl<Instance>) new JpaELFilterImpl<>(em, Instance.class).orderBy("field"))
+					.getResultPage(Instance.class, 4, null));
+			assertEquals(1, new JpaELFilterImpl<>(em, Instance.class).getResultPage(Instance.class, 4, null).getResults().size());
+		} finally {
+			System.clearProperty(DialectCapabilities.PREFIX + "database");
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testKeysetPagingWithIdClass(String provider) throws Exception {
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				CompositeKeyInstance e = new CompositeKeyInstance();
+				e.setKey1("k" + i);
+				e.setKey2("k" + (2 - j));
+				e.setString1("same");
+				em.persist(e);
+			}
+		}
+
+		List<String> keys = new ArrayList<>();
+		String continuation = null;
+		do {
+			KeysetPage<CompositeKeyInstance> page = new JpaELFilterImpl<>(em, CompositeKeyInstance.class)
+					.getResultPage(CompositeKeyInstance.class, 2, continuation);
+			page.getResults().forEach(e -> keys.add(e.getKey1() + e.getKey2()));
+			continuation = page.getContinuation();
+		} while (continuation != null);
+		assertEquals(Arrays.asList("k0k0", "k0k1", "k0k2", "k1k0", "k1k1", "k1k2", "k2k0", "k2k1", "k2k2"), keys);
+		assertEquals(6L, new JpaELFilterImpl<>(em, CompositeKeyInstance.class).filter("key2 ne k1").count().longValue());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testDialectCapabilities(String provider) throws Exception {
+		DialectCapabilities h2 = DialectCapabilities.forFactory(em.getEntityManagerFactory());
+		assertSame(h2, DialectCapabilities.forFactory(em.getEntityManagerFactory()));
+		assertEquals(DialectCapabilities.Database.H2, h2.getDatabase());
+		assertEquals(0, h2.getMaxInListSize());
+		assertEquals(1024, h2.getInListPadding());
+		assertEquals(0, h2.getMaxBindParameters());
+
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.url", "jdbc:oracle:thin:@localhost:1521:xe");
+		DialectCapabilities oracle = DialectCapabilities.of(properties);
+		assertEquals(DialectCapabilities.Database.ORACLE, oracle.getDatabase());
+		assertEquals(1000, oracle.getMaxInListSize());
+		properties.put(DialectCapabilities.PREFIX + "database", "postgresql");
+		properties.put(DialectCapabilities.PREFIX + "max_in_list_size", "500");
+		DialectCapabilities overridden = DialectCapabilities.of(properties);
+		assertEquals(DialectCapabilities.Database.POSTGRESQL, overridden.getDatabase());
+		assertEquals(500, overridden.getMaxInListSize());
+		assertEquals(32767, overridden.getMaxBindParameters());
+		assertFalse(overridden.nullsSortFirst());
+
+		// host and database names are not taken for the database
+		properties.clear();
+		properties.put("javax.persistence.jdbc.url", "jdbc:oracle:thin:@db-h2.example.com:1521/x");
+		assertEquals(DialectCapabilities.Database.ORACLE, DialectCapabilities.of(properties).getDatabase());
+		properties.put("javax.persistence.jdbc.url", "jdbc:postgresql://mysql-replacement/db2");
+		assertEquals(DialectCapabilities.Database.POSTGRESQL, DialectCapabilities.of(properties).getDatabase());
+		properties.clear();
+		properties.put("hibernate.dialect", "org.hibernate.dialect.SQLServer2012Dialect");
+		assertEquals(DialectCapabilities.Database.SQLSERVER, DialectCapabilities.of(properties).getDatabase());
+		properties.clear();
+		properties.put("javax.persistence.jdbc.driver", "com.mysql.jdbc.Driver");
+		assertEquals(DialectCapabilities.Database.MYSQL, DialectCapabilities.of(properties).getDatabase());
+		properties.clear();
+		properties.put("eclipselink.target-database", "Oracle");
+		assertEquals(DialectCapabilities.Database.ORACLE, DialectCapabilities.of(properties).getDatabase());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testInListSplitByMaxSize(String provider) throws Exception {
+		for (int i = 0; i < 6; i++) {
+			Instance e = new Instance();
+			e.setName("split" + i);
+			e.setNumber(i);
+			em.persist(e);
+		}
+		em.flush();
+
+		// capabilities are read once per factory, and each test has its own
+		System.setProperty(DialectCapabilities.PREFIX + "max_in_list_size", "2");
+		try {
+			assertEquals(5L, new JpaELFilterImpl<>(em, Instance.class).filter("number in \"0,1,2,4,5\"").count().longValue());
+			assertEquals(1L, new JpaELFilterImpl<>(em, Instance.class).filter("number not in \"0,1,2,4,5\"").count().longValue());
+		} finally {
+			System.clearProperty(DialectCapabilities.PREFIX + "max_in_list_size");
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testInListPadding(String provider) throws Exception {
+		for (int i = 0; i < 6; i++) {
+			Instance e = new Instance();
+			e.setName("pad" + i);
+			e.setNumber(i);
+			em.persist(e);
+		}
+		em.flush();
+
+		// padded lists are still split within the database's limit
+		System.setProperty(DialectCapabilities.PREFIX + "max_in_list_size", "2");
+		System.setProperty(DialectCapabilities.PREFIX + "in_list_padding", "4");
+		try {
+			TypedQuery<Instance> three = FilterPlan.compile("number in \"0,1,2\"").bind(em, Instance.class).prepareSelect(Instance.class);
+			TypedQuery<Instance> four = FilterPlan.compile("number in \"3,4,5,9\"").bind(em, Instance.class).prepareSelect(Instance.class);
+			assertEquals(4, three.getParameters().size());
+			if ("hibernate".equals(provider)) {
+				assertEquals(three.unwrap(org.hibernate.query.Query.class).getQueryString(), four.unwrap(org.hibernate.query.Query.class).getQueryString());
+			}
+			assertEquals(3, three.getResultList().size());
+			assertEquals(3, four.getResultList().size());
+			assertEquals(3L, new JpaELFilterImpl<>(em, Instance.class).filter("number not in \"0,1,2\"").count().longValue());
+			// longer lists are padded to a multiple of the padding
+			assertEquals(5L, new JpaELFilterImpl<>(em, Instance.class).filter("number in \"0,1,2,4,5\"").count().longValue());
+		} finally {
+			System.clearProperty(DialectCapabilities.PREFIX + "max_in_list_size");
+			System.clearProperty(DialectCapabilities.PREFIX + "in_list_padding");
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testInListWithinDatabaseLimits(String provider) throws Exception {
+		for (int i = 0; i < 6; i++) {
+			Instance e = new Instance();
+			e.setName("limit" + i);
+			e.setNumber(i);
+			em.persist(e);
+		}
+		em.flush();
+
+		System.setProperty(DialectCapabilities.PREFIX + "max_in_list_size", "3");
+		System.setProperty(DialectCapabilities.PREFIX + "max_bind_parameters", "4");
+		try {
+			// a list that fits into one in list is not padded past it
+			TypedQuery<Instance> three = FilterPlan.compile("number in \"0,1,2\"").bind(em, Instance.class).prepareSelect(Instance.class);
+			assertEquals(3, three.getParameters().size());
+			assertEquals(3, three.getResultList().size());
+			// the values of a list with more values than the statement may bind are not bound
+			TypedQuery<Instance> five = FilterPlan.compile("number in \"0,1,2,4,5\"").bind(em, Instance.class).prepareSelect(Instance.class);
+			assertEquals(0, five.getParameters().size());
+			assertEquals(5, five.getResultList().size());
+			assertEquals(1L, new JpaELFilterImpl<>(em, Instance.class).filter("number not in \"0,1,2,4,5\"").count().longValue());
+		} finally {
+			System.clearProperty(DialectCapabilities.PREFIX + "max_in_list_size");
+			System.clearProperty(DialectCapabilities.PREFIX + "max_bind_parameters");
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate" })
+	public void testKeysetToken(String provider) {
+		String token = KeysetToken.encode("f", Arrays.asList("a,b\\", null, "~", 12L));
+		List<Object> values = KeysetToken.decode(token, "f", 4);
+		assertEquals(Arrays.asList("a,b\\", null, "~", "12"), values);
+		assertEquals(12, KeysetToken.convert(values.get(3), int.class));
+		assertThrows(IllegalArgumentException.class, () -> KeysetToken.decode(token, "g", 4));
+		assertThrows(IllegalArgumentException.class, () -> KeysetToken.decode("not a token!", "f", 4));
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testPageWithTotal(String provider) throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Instance e = new Instance();
+			e.setName("page" + i);
+			e.setNumber(i);
+			em.persist(e);
+		}
+		em.getTransaction().commit();
+		em.getTransaction().begin();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			JpaELFilterImpl<Instance> el = new JpaELFilterImpl<>(em, Instance.class);
+			el.filter("number ge 1");
+			el.orderBy("name");
+			ResultPage<Instance> page = el.getPage(Instance.class, 2, 0);
+			assertEquals(2, page.getResults().size());
+			assertEquals(4, page.getTotal());
+
+			// a short page gives the total without counting
+			QueryTemplateCache cache = QueryTemplateCache.forFactory(em.getEntityManagerFactory());
+			long queries = cache.getHitCount() + cache.getMissCount();
+			page = el.getPage(Instance.class, 3, 2);
+			assertEquals(Arrays.asList("page3", "page4"), page.getResults().stream().map(Instance::getName).collect(Collectors.toList()));
+			assertEquals(4, page.getTotal());
+			assertEquals(queries + 1, cache.getHitCount() + cache.getMissCount());
+			assertEquals(4, el.getPage(Instance.class, 2, 10).getTotal());
+
+			page = el.getPage(Instance.class, 3, 0, executor);
+			assertEquals(3, page.getResults().size());
+			assertEquals(4, page.getTotal());
+		} finally {
+			executor.shutdown();
+			// the count only sees committed rows, which outlive the test
+			em.createQuery("delete from Instance i where i.name like 'page%'").executeUpdate();
+			em.getTransaction().commit();
+			em.getTransaction().begin();
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testExistsAndCountUpTo(String provider) throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Instance e = new Instance();
+			e.setName("upto" + i);
+			e.setNumber(i);
+			em.persist(e);
+		}
+		CompositeKeyInstance c = new CompositeKeyInstance();
+		c.setKey1("k1");
+		c.setKey2("k2");
+		em.persist(c);
+		em.flush();
+
+		JpaELFilterImpl<Instance> el = new JpaELFilterImpl<>(em, Instance.class);
+		el.filter("number ge 1");
+		assertTrue(el.exists());
+		assertEquals(2, el.countUpTo(2));
+		assertEquals(4, el.countUpTo(1000));
+		assertEquals(4, el.countUpTo(Long.MAX_VALUE));
+		el.filter("number gt 4");
+		assertFalse(el.exists());
+		assertEquals(0, el.countUpTo(10));
+		assertTrue(new JpaELFilterImpl<>(em, CompositeKeyInstance.class).filter("key2 eq k2").exists());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testApproximateCount(String provider) throws Exception {
+		for (int i = 0; i < 100; i++) {
+			Instance e = new Instance();
+			e.setName(String.format("approx%02d", i));
+			e.setNumber(i % 4);
+			em.persist(e);
+		}
+		em.flush();
+
+		// from the H2 table statistics
+		CountEstimate all = new JpaELFilterImpl<>(em, Instance.class).approximateCount();
+		assertFalse(all.isExact());
+		assertEquals(100, all.getCount());
+
+		JpaELFilterImpl<Instance> el = new JpaELFilterImpl<>(em, Instance.class);
+		el.filter("number eq 1");
+		CountEstimate exact = el.approximateCount();
+		assertTrue(exact.isExact());
+		assertEquals(25, exact.getCount());
+
+		// 5 of the first 20 rows match, string ids can only be sampled in order so the error is unknown
+		CountEstimate sampled = el.approximateCount(20);
+		assertFalse(sampled.isExact());
+		assertEquals(25, sampled.getCount());
+		assertEquals(-1, sampled.getErrorBound());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testApproximateCountSpreadOverIds(String provider) throws Exception {
+		for (long i = 1; i <= 1000; i++) {
+			InstanceWithNumericPrimaryKey e = new InstanceWithNumericPrimaryKey();
+			e.setId(i * 3);
+			e.setData(i > 700 ? "recent" : "old");
+			em.persist(e);
+		}
+		em.flush();
+
+		// the matches are the highest ids, which the first rows in id order would miss
+		JpaELFilterImpl<InstanceWithNumericPrimaryKey> el = new JpaELFilterImpl<>(em, InstanceWithNumericPrimaryKey.class);
+		el.filter("data eq recent");
+		CountEstimate estimate = el.approximateCount(100);
+		assertFalse(estimate.isExact());
+		assertTrue(estimate.getErrorBound() > 0);
+		assertTrue(Math.abs(estimate.getCount() - 300) <= estimate.getErrorBound(), estimate.toString());
+
+		assertTrue(el.approximateCount(1000).isExact());
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testApproximateCountWithStaleStatistics(String provider) throws Exception {
+		for (int i = 0; i < 100; i++) {
+			Instance e = new Instance();
+			e.setName(String.format("stale%02d", i));
+			e.setNumber(i);
+			em.persist(e);
+		}
+		em.flush();
+
+		// capabilities are read once per factory, and each test has its own
+		System.setProperty(DialectCapabilities.PREFIX + "row_estimate_query", "select count(*) * 0 from information_schema.tables where table_name = ?");
+		try {
+			// the matches are the rows after the sample in id order
+			JpaELFilterImpl<Instance> el = new JpaELFilterImpl<>(em, Instance.class);
+			el.filter("number ge 50");
+			CountEstimate clustered = el.approximateCount(20);
+			assertFalse(clustered.isExact());
+			assertEquals(0, clustered.getCount());
+			assertEquals(-1, clustered.getErrorBound());
+
+			JpaELFilterImpl<Instance> all = new JpaELFilterImpl<>(em, Instance.class);
+			all.filter("number ge 0");
+			CountEstimate estimate = all.approximateCount(20);
+			assertFalse(estimate.isExact());
+			assertEquals(100, estimate.getCount());
+			assertEquals(-1, estimate.getErrorBound());
+		} finally {
+			System.clearProperty(DialectCapabilities.PREFIX + "row_estimate_query");
+		}
+	}
+
+	@ParameterizedTest(name="{0}")
+	@ValueSource(strings = { "hibernate", "eclipselink" })
+	public void testResultStream(String provider) throws Exception {
+		for (int i = 0; i < 25; i++) {
+			Instance e = new Instance();
+			e.setName(String.format("stream%02d", i));
+			e.setNumber(i);
+			em.persist(e);
+		}
+		em.flush();
+		em.clear();
+
+		JpaELFilterImpl<Instance> el = new JpaELFilterImpl<>(em, Instance.class);
+		el.filter("number ge 5").orderBy("name");
+		List<Instance> read = new ArrayList<>();
+		try (Stream<Instance> results = el.getResultStream(Instance.class, 4, true)) {
+			results.forEach(e -> {
+				assertTrue(em.contains(e));
+				read.add(e);
+			});
+		}
+		assertEquals(20, read.size());
+		assertEquals("stream05", read.get(0).getName());
+		assertEquals("stream24", read.get(19).getName());
+		assertTrue(read.stream().noneMatch(em::contains));
+
+		List<Integer> numbers = new ArrayList<>();
+		el.filter("number lt 3").orderBy("-number");
+		assertEquals(3, el.forEach(Instance.class, 2, e -> numbers.add(e.getNumber())));
+		assertEquals(Arrays.asList(2, 1, 0), numbers);
+
+		// entities stay managed unless detaching is asked for
+		Instance held = em.find(Instance.class, "stream01");
+		assertEquals(3, el.forEach(Instance.class, 1, e -> { }));
+		assertTrue(em.contains(held));
+	}
+
 	@ParameterizedTest(name="{0}")
 	@ValueSource(strings = { "hibernate", "eclipselink" })
 	public void testBooleanProperty(String provider) throws Exception {
@@ -534,7 +1329,6 @@ public class JPAFilterImplTest {
 	@ValueSource(strings = { "hibernate", "eclipselink" })
 	public void testSimpleCountOfMultiId(String provider) throws Exception {
 
-//		System.setProperty("com.github.gdjennings.elrest.no_countdistinct", "true");
 		try {
 			CompositePKWithoutIdClass i1 = new CompositePKWithoutIdClass();
 			i1.setKey1("i1k1");
@@ -562,7 +1356,6 @@ public class JPAFilterImplTest {
 
 			assertEquals(2, counted);
 		} finally {
-//			System.clearProperty("com.github.gdjennings.elrest.no_countdistinct");
 
 		}
 	}
@@ -54,6 +54,20 @@ public class TestFilterELParser {
 		assertEquals(FilterExpression.ComparisonOperator.NOT_IN2, ((FilterExpression.SimpleClause) fe.getClause()).operator);
 	}
 
+	@Test
+	public void testBetween() throws Exception {
+		FilterELParser p = new FilterELParser("a between 1 and \"9\" and c eq d");
+		FilterExpression fe = p.parse();
+		FilterExpression.CompoundClause clause = (FilterExpression.CompoundClause) fe.getClause();
+		FilterExpression.SimpleClause between = (FilterExpression.SimpleClause) clause.left;
+		assertEquals("a", between.identifier);
+		assertEquals(FilterExpression.ComparisonOperator.BETWEEN, between.operator);
+		assertEquals("1", between.value);
+		assertEquals("9", between.upperValue);
+		assertEquals(FilterExpression.LogicalOperator.AND, clause.operator);
+		assertEquals("c", ((FilterExpression.SimpleClause) clause.right).identifier);
+	}
+
 	@Test
 	public void testUQLLogical() throws ParseException {
 		FilterELParser p = new FilterELParser("(a eq b) and (c ne d)");